@@ -1,16 +1,36 @@
 //package PA2;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Random;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -19,13 +39,39 @@ import java.util.logging.Logger;
 /* This ChannelEmulator class implements a UDP "chat server" that can
  * (1) echo messages, (2) accept control commands to register a user name
  * or change channel properties like loss, corruption probability, or delay,
- * and (3) relay messages to other users. It internally invokes a Timer
- * thread to delay messages and to periodically garbage collect state
- * left by users after a period of inactivity.
+ * and (3) relay messages to other users. It internally invokes an
+ * egress scheduler thread to delay messages and a Timer thread to
+ * periodically garbage collect state left by users after a period of
+ * inactivity.
+ *
+ * Delayed messages wait in per-user queues, which the egress scheduler
+ * serves with deficit round robin, in proportion to weights set with
+ * CHNL WEIGHT. Users can give themselves a weight of at most
+ * MAX_SELF_WEIGHT; in privileged mode, the privileged user can set any
+ * user's weight with CHNL WEIGHT <name> <weight>. When the total queue
+ * is full, the message is dropped from the user with the longest
+ * weighted queue, so that heavy senders cannot cause drops or long
+ * waits for light ones.
+ *
+ * Besides relaying to the peer set with CONN, a registered user can
+ * address a single datagram to any user by prefixing it with a line
+ * "TO <name>". The prefix is stripped and the rest is relayed through
+ * the same loss/corruption/delay pipeline, without touching the
+ * sender's relaying state.
+ *
+ * With -SNAPSHOT, the names and channel settings of all users are
+ * periodically written to a memory-mapped snapshot file, and reloaded
+ * from it on startup, so that users need not NAME and CONN again after
+ * a restart. Recovering from socket errors keeps them as they are.
+ *
+ * With -CAPTURE, every received datagram is recorded along with whether
+ * it was echoed, answered, relayed (and with what delay) or dropped, for
+ * replaying with TrafficReplay.
  *
  * Supports the following optional command-line arguments:
  * -PM privileged_user_name -P port_number - L loss_rate
  * -D delay_secs -R delay_dev_ratio -C corruption_rate
+ * -SNAPSHOT snapshot_file -CAPTURE capture_file
  */
 
 public class ChannelEmulator {
@@ -33,9 +79,15 @@ public class ChannelEmulator {
     private static int PORT = 4353;
     private static final int MAX_MSG_SIZE = 2048;
     private static final long MAX_INACTIVE_TIME = 1800000; // milliseconds after which user state is garbage collected
-    private static final int MAX_Q_SIZE = 8; // max number of outstanding segments per client
+    private static final int MAX_Q_SIZE = 8; // max number of outstanding segments per client of weight 1
     private static final int MAX_TQ_SIZE = 10000; // max number of total outstanding segments
+    private static final int QUANTUM = MAX_MSG_SIZE; // bytes per round robin turn of a client of weight 1
+    private static final double MAX_SELF_WEIGHT = 4; // highest weight users may give themselves
     private static final int MAX_MAP_SIZE = 1000000; // max number of client state entries
+    private static final String ADDRESS_PREFIX = "TO "; // per-datagram destination, see getAddressedMessage
+    private static final int MAX_ADDRESS_LENGTH = 256; // max length of the "TO <name>" line
+    private static final long SNAPSHOT_INTERVAL = 1000; // milliseconds between snapshots of changed state
+    private static final int SNAPSHOT_MAGIC = 0x43454d32; // "CEM2", first int of a snapshot file
 
     // Default channel parameters
     private static double LOSS = 0.1; // loss rate
@@ -44,17 +96,18 @@ public class ChannelEmulator {
     private static double CORRUPTION = 0.01; // probability of corruption of exactly one byte in each 100 byte block
     private static boolean PRIVILEGED_MODE = false; // If true, only privileged_user can set CHNL parameters
     private static String privileged_user = null;
+    private static Path snapshotFile = null; // null if snapshots are off
+    private static Path captureFile = null; // null if capturing is off
 
     private DatagramSocket udpsock = null;
-    private int TQSize = 0; // total number of outstanding segments
 
-    /* The two hashmaps below need to be ConcurrentHashMaps as they are modified by
-     * the main thread as well as the garbage collector thread.
-     */
-    private ConcurrentHashMap<InetSocketAddress, ChannelInfo> sockToCinfo = null; // [IP,port] -> channel info
-    private ConcurrentHashMap<String, InetSocketAddress> nameToSock = null; // name -> [IP,port]
+    private NameRegistry registry = null; // [IP,port] -> channel info and name -> [IP,port]
     private GarbageCollector GC = null; // Garbage collects state left by ungraceful client exits
-    private Timer timer = null; // Used by GarbageCollector and Delayer to schedule future events
+    private EgressScheduler egress = null; // Delays and sends relayed datagrams
+    private Timer timer = null; // Used by GarbageCollector to schedule future events
+    private Timer snapshotTimer = null; // Used by Snapshotter, kept apart so big snapshots do not hold up GC
+    private volatile boolean stateChanged = false; // set when the maps changed since the last snapshot
+    private TrafficCapture capture = null; // Records received datagrams if captureFile is set
     private Random random = null; // Used for implementing channel characteristics
 
     private int MAX_LOGMSG_SIZE = 64;
@@ -70,21 +123,143 @@ public class ChannelEmulator {
         public double corruption = CORRUPTION;
         public String name = "DEFAULT"; // Name of user
         public String peer = null; // Name of peer to which relaying
-        public long lastActive; // time in milliseconds, used for garbage collection upon inactivity
-        private int qSize = 0; // number of buffered packets at server
+        public double weight = 1; // share of the egress scheduler relative to other users
+        public long lastActive = System.currentTimeMillis(); // time in milliseconds, used for garbage collection upon inactivity
+        private final ClientQueue queue = new ClientQueue(this); // buffered packets at server
+    }
+
+    /* Registry of user state, mapping [IP,port] to channel info and
+     * registered names to [IP,port]. It is modified by the main thread as
+     * well as the garbage collector thread, but needs no emulator-wide lock:
+     * reads are lock-free, updates of one [IP,port] are serialized on one
+     * of STRIPES locks picked by its hash, and names are claimed and
+     * released with atomic conditional map operations. Together these keep
+     * the invariant that for any sockaddr, if sockToCinfo.get(sockaddr).name
+     * = name is registered, then nameToSock.get(name) = sockaddr, and vice
+     * versa. New entries first reserve room in size, which enforces
+     * MAX_MAP_SIZE atomically.
+     */
+    private class NameRegistry {
+        private static final int STRIPES = 64; // must be a power of 2
+        private final ConcurrentHashMap<InetSocketAddress, ChannelInfo> sockToCinfo = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, InetSocketAddress> nameToSock = new ConcurrentHashMap<>();
+        private final Object[] locks = new Object[STRIPES];
+        private final AtomicInteger size = new AtomicInteger(); // entries of sockToCinfo, including reserved ones
+
+        NameRegistry() {
+            for (int i = 0; i < STRIPES; i++) locks[i] = new Object();
+        }
+
+        private Object lockFor(InetSocketAddress isaddr) {
+            int hash = isaddr.hashCode();
+            return locks[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+        }
+
+        private boolean reserve() {
+            int current;
+            do {
+                current = size.get();
+                if (current >= MAX_MAP_SIZE) return false;
+            } while (!size.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        ChannelInfo get(InetSocketAddress isaddr) {
+            return isaddr != null ? sockToCinfo.get(isaddr) : null;
+        }
+
+        InetSocketAddress lookup(String name) {
+            return name != null ? nameToSock.get(name) : null;
+        }
+
+        Set<InetSocketAddress> addresses() {
+            return sockToCinfo.keySet();
+        }
 
-        public synchronized int incrQSize() {
-            return ++qSize;
-        } // called by main and Delayer threads
+        Set<String> names() {
+            return nameToSock.keySet();
+        }
+
+        int size() {
+            return size.get();
+        }
 
-        public synchronized int decrQSize() {
-            return --qSize;
-        } // called by main and Delayer threads
+        int nameCount() {
+            return nameToSock.size();
+        }
 
-        public synchronized int getQSize() {
-            return qSize;
+        boolean hasRoom() {
+            return size.get() < MAX_MAP_SIZE;
         }
 
+        // Stores cinfo for isaddr, unless isaddr is new and there is no room
+        boolean put(InetSocketAddress isaddr, ChannelInfo cinfo) {
+            synchronized (lockFor(isaddr)) {
+                ChannelInfo old = sockToCinfo.get(isaddr);
+                if (old == cinfo) return true;
+                if (old == null && !reserve()) return false;
+                if (old != null && old.name != null && !old.name.equals(cinfo.name)) nameToSock.remove(old.name, isaddr);
+                sockToCinfo.put(isaddr, cinfo);
+            }
+            stateChanged = true;
+            return true;
+        }
+
+        /* Registers name for isaddr in place of its previous name. Returns
+         * false if name is taken or isaddr is new and there is no room.
+         */
+        boolean setName(String name, InetSocketAddress isaddr) {
+            assert (isaddr != null && name != null);
+            if (nameToSock.putIfAbsent(name, isaddr) != null) return false;
+            synchronized (lockFor(isaddr)) {
+                ChannelInfo cinfo = sockToCinfo.get(isaddr);
+                if (cinfo == null) {
+                    if (!reserve()) {
+                        nameToSock.remove(name, isaddr);
+                        return false;
+                    }
+                    cinfo = new ChannelInfo();
+                } else if (cinfo.name != null && !cinfo.name.equals(name)) {
+                    nameToSock.remove(cinfo.name, isaddr);
+                }
+                cinfo.name = name;
+                sockToCinfo.put(isaddr, cinfo);
+            }
+            stateChanged = true;
+            return true;
+        }
+
+        /* Removes isaddr and its name. If inactiveSince is not 0, only
+         * removes it if it has not been active since then.
+         */
+        void remove(InetSocketAddress isaddr, long inactiveSince) {
+            if (isaddr == null) return;
+            synchronized (lockFor(isaddr)) {
+                ChannelInfo cinfo = sockToCinfo.get(isaddr);
+                if (cinfo == null || (inactiveSince != 0 && cinfo.lastActive >= inactiveSince)) return;
+                sockToCinfo.remove(isaddr);
+                if (cinfo.name != null) nameToSock.remove(cinfo.name, isaddr);
+                size.decrementAndGet();
+            }
+            stateChanged = true;
+        }
+
+        void clear() {
+            clear(0);
+        }
+
+        // Takes every stripe lock in turn, so no update is halfway through
+        private void clear(int stripe) {
+            if (stripe == STRIPES) {
+                sockToCinfo.clear();
+                nameToSock.clear();
+                size.set(0);
+                return;
+            }
+            synchronized (locks[stripe]) {
+                clear(stripe + 1);
+            }
+        }
     }
 
     /* This timertask periodically cleans up state left by users who did
@@ -93,91 +268,337 @@ public class ChannelEmulator {
     private class GarbageCollector extends TimerTask {
         public void run() {
             log.fine(printStats());
-            for (InetSocketAddress isaddr : sockToCinfo.keySet()) {
-                ChannelInfo cinfo = sockToCinfo.get(isaddr);
-                if (cinfo != null && cinfo.lastActive < System.currentTimeMillis() - MAX_INACTIVE_TIME)
-                    cleanup(isaddr);
+            long inactiveSince = System.currentTimeMillis() - MAX_INACTIVE_TIME;
+            for (InetSocketAddress isaddr : registry.addresses()) {
+                registry.remove(isaddr, inactiveSince);
             }
         }
     }
 
-    /* This timertask is used to introduce channel delay */
-    private class Delayer extends TimerTask {
-        DatagramPacket dgram = null;
-        ChannelInfo srcCinfo = null;
+    /* This timertask periodically writes a snapshot of sockToCinfo and
+     * nameToSock, if they changed since the last one.
+     */
+    private class Snapshotter extends TimerTask {
+        public void run() {
+            if (!stateChanged) return;
+            stateChanged = false;
+            try {
+                saveSnapshot();
+            } catch (IOException e) {
+                stateChanged = true; // try again next time
+                log.warning("Unable to write snapshot " + snapshotFile + ": " + e);
+            }
+        }
+    }
+
+    // A relayed datagram waiting in the egress scheduler
+    private static class Packet implements Comparable<Packet> {
+        final DatagramPacket dgram;
+        final ClientQueue owner;
+        final long due; // System.nanoTime() at which the channel delay is over
+        boolean removed = false; // sent or pushed out, but maybe still listed in the queues
 
-        Delayer(DatagramPacket d, ChannelInfo s) {
-            dgram = d;
-            srcCinfo = s;
+        Packet(DatagramPacket dgram, ClientQueue owner, long due) {
+            this.dgram = dgram;
+            this.owner = owner;
+            this.due = due;
+        }
+
+        public int compareTo(Packet other) {
+            return Long.compare(due, other.due);
+        }
+    }
+
+    /* The packets of one sender in the egress scheduler: all of them in
+     * arrival order, and those whose delay is over in the order it ended.
+     * Packets are sent from the head of ready and pushed out from the tail
+     * of pending; either way they are only marked removed, and dropped from
+     * the other queue when they reach its end, so neither is ever searched.
+     * Only accessed with the EgressScheduler's monitor held.
+     */
+    private static class ClientQueue {
+        private static final AtomicInteger ids = new AtomicInteger();
+
+        final ChannelInfo cinfo;
+        final int id = ids.incrementAndGet(); // orders queues of equal load and length
+        final ArrayDeque<Packet> pending = new ArrayDeque<>();
+        final ArrayDeque<Packet> ready = new ArrayDeque<>();
+        int count = 0; // packets not yet removed
+        double load = 0; // count relative to the weight, as of the last change of count
+        int deficit = 0; // bytes this client may still send in its current round robin turn
+
+        ClientQueue(ChannelInfo cinfo) {
+            this.cinfo = cinfo;
+        }
+
+        int quantum() {
+            return (int) Math.max(1, QUANTUM * cinfo.weight);
+        }
+
+        int capacity() {
+            return (int) Math.max(1, Math.ceil(MAX_Q_SIZE * cinfo.weight));
+        }
+
+        // The first ready packet that was not pushed out, or null
+        Packet nextReady() {
+            while (!ready.isEmpty() && ready.peek().removed) ready.poll();
+            return ready.peek();
+        }
+
+        // The newest packet that was not sent yet, or null
+        Packet newest() {
+            while (!pending.isEmpty() && pending.peekLast().removed) pending.pollLast();
+            return pending.peekLast();
+        }
+    }
+
+    /* This thread introduces channel delay and shares the outgoing socket
+     * fairly. Packets wait in delayLine until their delay is over, then in
+     * the ready queue of their sender, and the senders with ready packets
+     * take turns with deficit round robin: every turn, a sender may send up
+     * to its quantum, plus what it left unused last turn, in bytes.
+     */
+    private class EgressScheduler extends Thread {
+        private final PriorityQueue<Packet> delayLine = new PriorityQueue<>();
+        private final ArrayDeque<ClientQueue> active = new ArrayDeque<>(); // senders with ready packets
+        private final TreeSet<ClientQueue> backlogged = new TreeSet<>( // senders with pending packets, by load
+                Comparator.comparingDouble((ClientQueue queue) -> queue.load)
+                        .thenComparingInt(queue -> queue.count).thenComparingInt(queue -> queue.id));
+        private int size = 0; // total number of outstanding segments
+
+        EgressScheduler() {
+            super("egress");
+        }
+
+        /* Queues dgram for sending after delay milliseconds. Returns false,
+         * dropping dgram, if its sender's queue is full, or if the total
+         * queue is full and no sender has a longer weighted queue.
+         */
+        boolean enqueue(DatagramPacket dgram, ChannelInfo srcCinfo, long delay) {
+            ClientQueue queue = srcCinfo.queue;
+            ClientQueue victim = null;
+            synchronized (this) {
+                if (queue.count >= queue.capacity()) return false;
+                if (size >= MAX_TQ_SIZE && (victim = pushOut(queue)) == null) return false;
+                Packet packet = new Packet(dgram, queue, System.nanoTime() + delay * 1000000);
+                queue.pending.add(packet);
+                delayLine.add(packet);
+                recount(queue, 1);
+                notify();
+            }
+            if (victim != null) log.info("Pushing out message from " + victim.cinfo.name + " for one from " + srcCinfo.name);
+            return true;
+        }
+
+        /* Drops the newest packet of the longest weighted queue, if it is
+         * longer than that of arriving, and returns the queue it came from.
+         */
+        private ClientQueue pushOut(ClientQueue arriving) {
+            ClientQueue longest = backlogged.isEmpty() ? null : backlogged.last();
+            if (longest == null || longest == arriving || longest.load <= arriving.load) return null;
+            remove(longest.newest());
+            return longest;
+        }
+
+        // Marks packet removed; it is skipped wherever it is still listed
+        private void remove(Packet packet) {
+            packet.removed = true;
+            ArrayDeque<Packet> pending = packet.owner.pending;
+            while (!pending.isEmpty() && pending.peek().removed) pending.poll();
+            recount(packet.owner, -1);
+        }
+
+        // Changes the number of packets of queue, keeping backlogged ordered by load
+        private void recount(ClientQueue queue, int change) {
+            backlogged.remove(queue);
+            queue.count += change;
+            queue.load = queue.count / Math.max(queue.cinfo.weight, Double.MIN_VALUE);
+            if (queue.count > 0) backlogged.add(queue);
+            size += change;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        // Waits for packets whose delay is over and returns the ones the next sender in turn may send
+        private synchronized List<Packet> nextTurn() throws InterruptedException {
+            while (true) {
+                long now = System.nanoTime();
+                while (!delayLine.isEmpty() && delayLine.peek().due <= now) {
+                    Packet packet = delayLine.poll();
+                    if (packet.removed) continue;
+                    ClientQueue queue = packet.owner;
+                    if (queue.ready.isEmpty()) active.add(queue);
+                    queue.ready.add(packet);
+                }
+                if (!active.isEmpty()) break;
+                if (delayLine.isEmpty()) wait();
+                else {
+                    long wait = delayLine.peek().due - now;
+                    wait(wait / 1000000, (int) (wait % 1000000));
+                }
+            }
+            ClientQueue queue = active.poll();
+            queue.deficit += queue.quantum();
+            List<Packet> turn = new ArrayList<>();
+            Packet packet;
+            while ((packet = queue.nextReady()) != null && packet.dgram.getLength() <= queue.deficit) {
+                queue.ready.poll();
+                queue.deficit -= packet.dgram.getLength();
+                remove(packet);
+                turn.add(packet);
+            }
+            if (packet == null) queue.deficit = 0;
+            else active.add(queue);
+            return turn;
         }
 
         public void run() {
-            try {
-                send(dgram);
-                decrTQSize();
-                if (srcCinfo != null) srcCinfo.decrQSize();
-            } catch (IOException e) {
-                // Do nothing coz it's just like a loss or really high delay
-                log.warning("IOException while sending delayed datagram: " + e);
+            while (true) {
+                try {
+                    for (Packet packet : nextTurn()) send(packet.dgram);
+                } catch (IOException e) {
+                    // Do nothing coz it's just like a loss or really high delay
+                    log.warning("IOException while sending delayed datagram: " + e);
+                } catch (InterruptedException e) {
+                    return;
+                }
             }
         }
     }
 
     // Constructor processes args, opens a UDP socket, and allocates members.
-    ChannelEmulator(String[] args) throws SocketException {
+    ChannelEmulator(String[] args) throws IOException {
         processArgs(args);
         udpsock = new DatagramSocket(PORT);
-        sockToCinfo = new ConcurrentHashMap<>();
-        nameToSock = new ConcurrentHashMap<>();
-        timer = new Timer();
+        registry = new NameRegistry();
+        egress = new EgressScheduler();
         random = new Random();
-        GC = new GarbageCollector();
-    }
-
-    /* Called by both the main thread and the GC thread. Needs to be
-     * synchronized as, otherwise, interleaving between the GC calling
-     * this method and the main thread calling processAsControlMessage's
-     * setName method below to assign a name can leave inconsistent
-     * entries in sockToCinfo and nameToSock.
-     */
-    private synchronized void cleanup(InetSocketAddress isaddr) {
-        ChannelInfo cinfo = isaddr != null ? sockToCinfo.get(isaddr) : null;
-        if (cinfo != null) {
-            sockToCinfo.remove(isaddr);
-            if (cinfo.name != null) nameToSock.remove(cinfo.name);
+        if (snapshotFile != null) {
+            snapshotTimer = new Timer(true);
+            loadSnapshot();
+        }
+        if (captureFile != null) {
+            capture = new TrafficCapture(captureFile);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    capture.close();
+                } catch (IOException e) {
+                    // nothing left to do on the way out
+                }
+            }));
         }
     }
 
-    /* Synchronization here as well as in the cleanup method ensures the invariant
-     * that for any sockaddr, if sockToCinfo.get(sockaddr).name = name, then
-     * nameToSock.get(name) = sockaddr, and vice versa.
-     */
-    private synchronized void setName(String name, InetSocketAddress isaddr) {
-        assert (isaddr != null && name != null);
-        ChannelInfo cinfo = sockToCinfo.get(isaddr);
-        if (cinfo == null) cinfo = new ChannelInfo();
-        else nameToSock.remove(cinfo.name);
-        nameToSock.put(name, isaddr);
-        cinfo.name = name;
-        sockToCinfo.put(isaddr, cinfo);
+    // (Re)creates the timer and schedules the periodic tasks on it.
+    private void startTimers() {
+        timer = new Timer();
+        GC = new GarbageCollector();
+        timer.schedule(GC, 0, MAX_INACTIVE_TIME);
     }
 
-    private synchronized int incrTQSize() {
-        return ++TQSize;
+    /* Start of snapshot methods. A snapshot is the magic int, the number of
+     * entries, and then per registered [IP,port]: IP length and bytes, port,
+     * loss, delay, delay_dev_ratio, corruption, weight, whether the name is registered,
+     * the name, and the peer. Strings are written as a short
+     * length (-1 for null) followed by UTF-8 bytes. The file is written
+     * under a temporary name and then moved over the old one, so a crash
+     * while writing leaves the previous snapshot in place. Writers are
+     * serialized, as they share the temporary file.
+     */
+    private synchronized void saveSnapshot() throws IOException {
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(entries);
+        int count = 0;
+        for (InetSocketAddress isaddr : registry.addresses()) {
+            ChannelInfo cinfo = registry.get(isaddr);
+            if (cinfo == null || isaddr.getAddress() == null) continue;
+            byte[] ip = isaddr.getAddress().getAddress();
+            out.writeByte(ip.length);
+            out.write(ip);
+            out.writeShort(isaddr.getPort());
+            out.writeDouble(cinfo.loss);
+            out.writeDouble(cinfo.delay);
+            out.writeDouble(cinfo.delay_dev_ratio);
+            out.writeDouble(cinfo.corruption);
+            out.writeDouble(cinfo.weight);
+            out.writeBoolean(isaddr.equals(registry.lookup(cinfo.name)));
+            writeString(out, cinfo.name);
+            writeString(out, cinfo.peer);
+            count++;
+        }
+        out.flush();
+        Path tmp = Paths.get(snapshotFile + ".tmp");
+        try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer map = fc.map(FileChannel.MapMode.READ_WRITE, 0, 8 + entries.size());
+            map.putInt(SNAPSHOT_MAGIC);
+            map.putInt(count);
+            map.put(entries.toByteArray());
+            map.force();
+        }
+        Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.fine("Wrote snapshot of " + count + " entries to " + snapshotFile);
     }
 
-    private synchronized int decrTQSize() {
-        return --TQSize;
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeShort(-1);
+            return;
+        }
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
     }
 
-    private synchronized int getTQSize() {
-        return TQSize;
+    private static String readString(ByteBuffer in) {
+        int length = in.getShort();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 
-    private synchronized void clearMaps() {
-        sockToCinfo.clear();
-        nameToSock.clear();
+    /* Adds the entries of the snapshot file, if any, to the (empty) maps. Loaded
+     * users count as active now, so they are not garbage collected right
+     * away. Names are registered again only if they were registered in
+     * the snapshot and are still free.
+     */
+    private void loadSnapshot() {
+        if (!Files.exists(snapshotFile)) return;
+        try (FileChannel fc = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+            MappedByteBuffer in = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            if (in.remaining() < 8 || in.getInt() != SNAPSHOT_MAGIC) {
+                log.warning("Ignoring snapshot " + snapshotFile + " with unknown format");
+                return;
+            }
+            int count = in.getInt();
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < count && registry.hasRoom(); i++) {
+                byte[] ip = new byte[in.get()];
+                in.get(ip);
+                InetSocketAddress isaddr = new InetSocketAddress(InetAddress.getByAddress(ip), in.getShort() & 0xffff);
+                ChannelInfo cinfo = new ChannelInfo();
+                cinfo.loss = in.getDouble();
+                cinfo.delay = in.getDouble();
+                cinfo.delay_dev_ratio = in.getDouble();
+                cinfo.corruption = in.getDouble();
+                cinfo.weight = in.getDouble();
+                boolean registered = in.get() != 0;
+                cinfo.name = readString(in);
+                cinfo.peer = readString(in);
+                cinfo.lastActive = now;
+                if (registry.put(isaddr, cinfo) && registered && cinfo.name != null) {
+                    registry.setName(cinfo.name, isaddr);
+                }
+            }
+            log.info("Loaded snapshot of " + count + " entries from " + snapshotFile + "\n" + printStats());
+        } catch (IOException | BufferUnderflowException | NegativeArraySizeException e) {
+            log.warning("Unable to load snapshot " + snapshotFile + ": " + e);
+        }
     }
+    /* End of snapshot methods */
 
     /* Start of methods to mangle packets being relayed by the channel. */
     private byte[] lose(byte[] msg, ChannelInfo cinfo) {
@@ -187,14 +608,18 @@ public class ChannelEmulator {
         return msg;
     }
 
-    // Randomly corrupts a byte in each 100 byte block with corruption probability
-    private byte[] corrupt(byte[] msg, ChannelInfo cinfo) {
+    /* Randomly corrupts a byte in each 100 byte block with corruption
+     * probability, adding the offset of each corrupted byte to corrupted
+     * unless that is null.
+     */
+    private byte[] corrupt(byte[] msg, ChannelInfo cinfo, List<Integer> corrupted) {
         if (msg == null) return null;
         double corruption = (cinfo != null ? cinfo.corruption : CORRUPTION);
         for (int i = 0; i < msg.length; i += 100) {
             if (random.nextDouble() < corruption) {
                 int j = (int) (random.nextDouble() * (Math.min(i + 100, msg.length - 1)));
                 msg[j] = (byte) (random.nextDouble() * 256);
+                if (corrupted != null) corrupted.add(j);
             }
         }
         return msg;
@@ -202,40 +627,44 @@ public class ChannelEmulator {
 
     /* Introduces src channel delay plus destination channel delay. Each
      * delay is computed as delay*(1 +/- variance) in milliseconds and must
-     * be at least 0.
+     * be at least 0. Returns the total delay in milliseconds, or -1 if
+     * there is no room in the egress scheduler.
      */
-    private void delay(DatagramPacket dgram, ChannelInfo srcCinfo) {
-        if (dgram == null) return;
-        Delayer task = new Delayer(dgram, srcCinfo);
+    private long delay(DatagramPacket dgram, ChannelInfo srcCinfo) {
+        if (dgram == null) return -1;
         ChannelInfo dstCinfo = getChannelInfo(dgram);
         double src_delay = (srcCinfo != null ? srcCinfo.delay : DELAY);
         double src_delay_dev_ratio = (srcCinfo != null ? srcCinfo.delay : DELAY);
         double dst_delay = dstCinfo != null ? dstCinfo.delay : DELAY;
         double dst_delay_dev_ratio = (dstCinfo != null ? dstCinfo.delay_dev_ratio : DELAY_DEV_RATIO);
-        timer.schedule(task,
-                Math.max(0, (long) ((dst_delay * (1 + dst_delay_dev_ratio * (2 * random.nextDouble() - 1))) * 1000)) +
-                        Math.max(0, (long) ((src_delay * (1 + src_delay_dev_ratio * (2 * random.nextDouble() - 1))) * 1000)));
+        long ms = Math.max(0, (long) ((dst_delay * (1 + dst_delay_dev_ratio * (2 * random.nextDouble() - 1))) * 1000)) +
+                Math.max(0, (long) ((src_delay * (1 + src_delay_dev_ratio * (2 * random.nextDouble() - 1))) * 1000));
+        return egress.enqueue(dgram, srcCinfo, ms) ? ms : -1;
     }
 
     /* Apply loss, corruption, and delay each for the src channel as well as
-     * the destination channel respectively.
+     * the destination channel respectively. Returns the delay in
+     * milliseconds, or -1 if the datagram was dropped. The offsets of the
+     * corrupted bytes in the relayed datagram are added to corrupted,
+     * unless that is null.
      */
-    private void mangle(DatagramPacket dgram, InetSocketAddress srcAddr) throws IOException {
-        if (dgram == null || srcAddr == null) return; // dgram can be null if getRelayMessage returns null
+    private long mangle(DatagramPacket dgram, InetSocketAddress srcAddr, List<Integer> corrupted) throws IOException {
+        if (dgram == null || srcAddr == null) return -1; // dgram can be null if getRelayMessage returns null
         byte[] msg = Arrays.copyOfRange(dgram.getData(), 0, dgram.getLength());
-        ChannelInfo srcCinfo = sockToCinfo.get(srcAddr);
+        ChannelInfo srcCinfo = registry.get(srcAddr);
         ChannelInfo dstCinfo = getChannelInfo(dgram);
         msg = lose(msg, srcCinfo);
         msg = lose(msg, dstCinfo);
-        msg = corrupt(msg, srcCinfo);
-        msg = corrupt(msg, dstCinfo);
-        if (msg != null && srcCinfo.getQSize() < MAX_Q_SIZE && getTQSize() < MAX_TQ_SIZE) {
-            srcCinfo.incrQSize();
-            this.incrTQSize();
+        msg = corrupt(msg, srcCinfo, corrupted);
+        msg = corrupt(msg, dstCinfo, corrupted);
+        if (msg != null) {
             dgram.setData(msg);
-            delay(dgram, srcCinfo);
-        } else log.info("Dropping message from " + getNameString(srcAddr) +
+            long ms = delay(dgram, srcCinfo);
+            if (ms >= 0) return ms;
+        }
+        log.info("Dropping message from " + getNameString(srcAddr) +
                 " to " + getNameString(dgram) + " : " + truncate(dgram));
+        return -1;
     }
     /* End of methods to mangle packets being relayed by the channel. */
 
@@ -251,7 +680,7 @@ public class ChannelEmulator {
 
         InetSocketAddress isaddr = (InetSocketAddress) (dgram.getSocketAddress());
         if (isaddr == null) return null;
-        ChannelInfo cinfo = sockToCinfo.get(isaddr);
+        ChannelInfo cinfo = registry.get(isaddr);
 
         // if in relaying mode, check for stopping relaying
         if (isRelaying(dgram)) {
@@ -264,15 +693,15 @@ public class ChannelEmulator {
         // first check for QUIT and happily clear away any state
         else if (cmd.equals("QUIT") && parts.length == 1) {
             response = "OK Bye";
-            cleanup(isaddr);
+            registry.remove(isaddr, 0);
         } else if (cmd.equals("NAME") && parts.length == 2 && (room = haveRoom(cinfo))) {
-            if (!nameToSock.containsKey(parts[1])) {
-                setName(parts[1], isaddr);
+            if (registry.setName(parts[1], isaddr)) {
                 response = "OK Hello " + parts[1];
             }
-            else {
+            else if (registry.lookup(parts[1]) != null) {
                 response = "!OK Already taken";
             }
+            else room = false;
         } else if (cmd.equals("CONN") && parts.length > 1 && (room = haveRoom(cinfo))) {
             if (cinfo == null) cinfo = new ChannelInfo();
             cinfo.peer = (msg.split("\\s", 2))[1];
@@ -282,14 +711,28 @@ public class ChannelEmulator {
              * is, peer is either a name that is mapped to a sockaddr
              * or it is a sockaddr itself.
              */
-            if (nameToSock.get(cinfo.peer) == null && peerSock != null)
+            if (registry.lookup(cinfo.peer) == null && peerSock != null)
                 cinfo.peer = peerSock.toString();
-            sockToCinfo.put(isaddr, cinfo);
-            response = "OK Relaying to " + cinfo.peer +
-                    ((peerSock == null || sockToCinfo.get(peerSock) == null) ?
-                            " who is probably offline" :
-                            (!cinfo.peer.equals(peerSock.toString()) ?
-                                    " at " + peerSock : ""));
+            if (room = registry.put(isaddr, cinfo)) {
+                response = "OK Relaying to " + cinfo.peer +
+                        ((peerSock == null || registry.get(peerSock) == null) ?
+                                " who is probably offline" :
+                                (!cinfo.peer.equals(peerSock.toString()) ?
+                                        " at " + peerSock : ""));
+            }
+        }
+        // The privileged_user can weight other users
+        else if (cmd.equals("CHNL") && parts.length == 4 && parts[1].equals("WEIGHT") && isPrivileged(dgram)) {
+            ChannelInfo target = registry.get(registry.lookup(parts[2]));
+            try {
+                double weight = Double.valueOf(parts[3]);
+                if (target != null && weight > 0) {
+                    target.weight = weight;
+                    response = "OK " + msg;
+                }
+            } catch (NumberFormatException nfe) {
+                // no response, as for other malformed commands
+            }
         }
         /* The privileged_mode allows only the privileged_user to set channel
          * parameters and sets it for all users.
@@ -309,14 +752,18 @@ public class ChannelEmulator {
                     } else if (parts[i].equals("DELAY")) cinfo.delay = Double.valueOf(parts[i + 1]);
                     else if (parts[i].equals("DELAY_DEV_RATIO")) cinfo.delay_dev_ratio = Double.valueOf(parts[i + 1]);
                     else if (parts[i].equals("CORRUPTION")) cinfo.corruption = Double.valueOf(parts[i + 1]);
+                    else if (parts[i].equals("WEIGHT")) {
+                        double weight = Double.valueOf(parts[i + 1]);
+                        if (weight <= 0) parsed = false; // the only parameter that has to be positive
+                        else cinfo.weight = isPrivileged(dgram) ? weight : Math.min(weight, MAX_SELF_WEIGHT);
+                    }
                     else parsed = false;
                 } catch (NumberFormatException nfe) {
                     parsed = false;
                 }
             }
-            if (parsed) {
+            if (parsed && (room = registry.put(isaddr, cinfo))) {
                 response = "OK " + msg;
-                sockToCinfo.put(isaddr, cinfo);
             }
             if (PRIVILEGED_MODE) { // will behave fine even with bad CHNL commands
                 LOSS = cinfo.loss;
@@ -330,8 +777,8 @@ public class ChannelEmulator {
 
         } else if (cmd.equals("LIST") && parts.length == 1 && (room = haveRoom(cinfo))) {
             response = "OK LIST = ";
-            for (String name : nameToSock.keySet()) {
-                response += (name + nameToSock.get(name) + " ");
+            for (String name : registry.names()) {
+                response += (name + registry.lookup(name) + " ");
             }
         }
         if (!room) response = "!OK: chat server too crowded, try again later";
@@ -339,7 +786,7 @@ public class ChannelEmulator {
     }
 
     private boolean haveRoom(ChannelInfo cinfo) {
-        if (cinfo != null || sockToCinfo.size() <= MAX_MAP_SIZE) return true;
+        if (cinfo != null || registry.hasRoom()) return true;
         return false;
     }
 
@@ -347,11 +794,14 @@ public class ChannelEmulator {
      * only from the privileged user.
      */
     private boolean allowCHNL(DatagramPacket dgram) {
-        if (!PRIVILEGED_MODE) return true;
+        return !PRIVILEGED_MODE || isPrivileged(dgram);
+    }
+
+    // Whether privileged mode is enabled and dgram is from the privileged user
+    private boolean isPrivileged(DatagramPacket dgram) {
+        if (!PRIVILEGED_MODE) return false;
         ChannelInfo cinfo = getChannelInfo(dgram);
-        if (cinfo != null && cinfo.name.equals(privileged_user))
-            return true;
-        return false;
+        return cinfo != null && privileged_user.equals(cinfo.name);
     }
 
     /* Start of utility methods*/
@@ -363,9 +813,9 @@ public class ChannelEmulator {
     }
 
     private String getNameString(InetSocketAddress isaddr) {
-        ChannelInfo cinfo = isaddr != null ? sockToCinfo.get(isaddr) : null;
+        ChannelInfo cinfo = registry.get(isaddr);
         String name = (cinfo != null ? cinfo.name : "");
-        return (name != null ? name : "") + nameToSock.get(name);
+        return (name != null ? name : "") + registry.lookup(name);
     }
 
     // non-null peer in name/IP:port format
@@ -378,7 +828,7 @@ public class ChannelEmulator {
 
     private ChannelInfo getChannelInfo(DatagramPacket dgram) {
         InetSocketAddress isaddr = (InetSocketAddress) (dgram.getSocketAddress());
-        ChannelInfo cinfo = isaddr != null ? sockToCinfo.get(isaddr) : null;
+        ChannelInfo cinfo = registry.get(isaddr);
         return cinfo;
     }
 
@@ -388,14 +838,14 @@ public class ChannelEmulator {
         return false;
     }
 
-    /* Tries to recognize name by keying into nameToSock or by
+    /* Tries to recognize name by looking it up in the registry or by
      * decomposing name into IP:port pair. Accepts name or "IP:port"
      * or "IP port" or "name/IP:port" or "name IP port". The name
      * as in the latter two will be ignored when IP,port is parsed.
      */
     private InetSocketAddress getPeerSock(String name) {
         InetSocketAddress isaddr = null;
-        if (name != null && (isaddr = nameToSock.get(name)) == null) {
+        if (name != null && (isaddr = registry.lookup(name)) == null) {
             name = name.replace('/', ' ').replace(':', ' ').trim();
             String[] parts = name.split("\\s");
             if (parts.length > 1) {
@@ -415,7 +865,7 @@ public class ChannelEmulator {
     // Affix peer IP:port to received datagram to make relayable datagram
     private DatagramPacket getRelayMessage(DatagramPacket dgram) {
         InetSocketAddress sndsock = (InetSocketAddress) (dgram.getSocketAddress());
-        ChannelInfo cinfo = sndsock != null ? sockToCinfo.get(sndsock) : null;
+        ChannelInfo cinfo = registry.get(sndsock);
         if (cinfo != null && cinfo.peer != null) {
             InetSocketAddress rcvsock = getPeerSock(cinfo.peer);
             if (rcvsock != null) {
@@ -426,6 +876,34 @@ public class ChannelEmulator {
         return dgram;
     }
 
+    private boolean isAddressed(DatagramPacket dgram) {
+        byte[] data = dgram.getData();
+        if (dgram.getLength() < ADDRESS_PREFIX.length()) return false;
+        for (int i = 0; i < ADDRESS_PREFIX.length(); i++) {
+            if (data[dgram.getOffset() + i] != ADDRESS_PREFIX.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /* Strips the "TO <name>" line off an addressed datagram and points the
+     * datagram at name's IP:port instead. Returns null if the line is
+     * malformed or the name cannot be resolved.
+     */
+    private DatagramPacket getAddressedMessage(DatagramPacket dgram) {
+        byte[] data = dgram.getData();
+        int start = dgram.getOffset(), end = start + dgram.getLength();
+        int newline = start;
+        while (newline < end && newline - start < MAX_ADDRESS_LENGTH && data[newline] != '\n') newline++;
+        if (newline == end || data[newline] != '\n') return null;
+        String name = new String(data, start + ADDRESS_PREFIX.length(), newline - start - ADDRESS_PREFIX.length()).trim();
+        InetSocketAddress rcvsock = getPeerSock(name);
+        if (rcvsock == null) return null;
+        dgram.setData(Arrays.copyOfRange(data, newline + 1, end));
+        dgram.setAddress(rcvsock.getAddress());
+        dgram.setPort(rcvsock.getPort());
+        return dgram;
+    }
+
     private String truncate(DatagramPacket dgram) {
         return truncate(new String(dgram.getData(), 0, dgram.getLength()));
     }
@@ -452,30 +930,34 @@ public class ChannelEmulator {
     }
 
     /* Upon IOException, try closing and reopening socket a few times
-     * with increasing timeouts. Also try refreshing the hashmaps so the
-     * old ones can be garbage collected in case they have grown too big.
+     * with increasing timeouts. Without snapshots, also refresh the
+     * hashmaps so the old ones can be garbage collected in case they have
+     * grown too big; with snapshots on, the registry is kept as it is, as
+     * snapshots are for restarts of the process. The timer is restarted,
+     * as cancelling it drops all its tasks.
      */
     private void tryRecover() throws IOException {
+        if (snapshotFile == null) registry.clear();
+        timer.cancel();
+        startTimers();
         long retry = 5000; //milliseconds
         for (int i = 0; i < 5; i++) {
             if (!udpsock.isClosed()) udpsock.close();
-            clearMaps();
-            timer.cancel();
-            try {
-                Thread.sleep((retry *= 2));
-            } catch (InterruptedException ie) {
-                log.severe("Sleep interrupt during recovery: " + ie);
-            }
             try {
                 udpsock = new DatagramSocket(PORT);
+                return;
             } catch (IOException ioe) {
                 log.severe("Exception # " + i + ": " + ioe);
-                continue;
             } catch (OutOfMemoryError ome) {
                 log.severe("Exception # " + i + ": " + ome);
-                continue;
+            }
+            try {
+                Thread.sleep((retry *= 2));
+            } catch (InterruptedException ie) {
+                log.severe("Sleep interrupt during recovery: " + ie);
             }
         }
+        throw new IOException("Unable to reopen socket on port " + PORT);
     }
 
     // Command-line argument processing
@@ -485,6 +967,13 @@ public class ChannelEmulator {
             if (args[i].equals("-PRIVILEGED_MODE") || args[i].equals("-PM")) {
                 PRIVILEGED_MODE = true;
                 privileged_user = args[i + 1];
+                continue;
+            } else if (args[i].equals("-SNAPSHOT")) {
+                snapshotFile = Paths.get(args[i + 1]);
+                continue;
+            } else if (args[i].equals("-CAPTURE")) {
+                captureFile = Paths.get(args[i + 1]);
+                continue;
             }
             try {
                 if (args[i].equals("-PORT") || args[i].equals("-P")) {
@@ -514,13 +1003,14 @@ public class ChannelEmulator {
                 "  DELAY " + (cinfo != null ? cinfo.delay : DELAY) +
                 "  DELAY_DEV_RATIO " + (cinfo != null ? cinfo.delay_dev_ratio : DELAY_DEV_RATIO) +
                 "  CORRUPTION " + (cinfo != null ? cinfo.corruption : CORRUPTION) +
+                (cinfo != null ? "  WEIGHT " + cinfo.weight : "") +
                 (PRIVILEGED_MODE ? "  privileged_user " + privileged_user : "") + " ]";
     }
 
     // Printing overall stats
     private String printStats() {
-        return "ChannelEmulator: |sockToCinfo| = " + sockToCinfo.size() + " , |nameToSock| = " + nameToSock.size() +
-                " , TQSize = " + TQSize + "\n";
+        return "ChannelEmulator: |sockToCinfo| = " + registry.size() + " , |nameToSock| = " + registry.nameCount() +
+                " , TQSize = " + egress.size() + (capture != null ? " , capture drops = " + capture.getDropped() : "") + "\n";
     }
 
     /* This method first tries to process a packet as a control message, then
@@ -528,10 +1018,15 @@ public class ChannelEmulator {
      */
     public void run() {
         int num_excepts = 0;
-        timer.schedule(GC, 0, MAX_INACTIVE_TIME);
+        startTimers();
+        egress.start();
+        if (snapshotTimer != null) snapshotTimer.schedule(new Snapshotter(), SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL);
         while (true) {
             try {
                 DatagramPacket dgram = readMessage();
+                long captureTime = capture != null ? capture.now() : 0;
+                byte[] ingress = capture != null ? Arrays.copyOfRange(dgram.getData(), 0, dgram.getLength()) : null;
+                InetSocketAddress srcsock = (InetSocketAddress) dgram.getSocketAddress();
                 String sender = getNameString(dgram);
                 ChannelInfo cinfo = getChannelInfo(dgram);
                 if (cinfo != null) cinfo.lastActive = System.currentTimeMillis();
@@ -541,29 +1036,47 @@ public class ChannelEmulator {
                  * relayed or echoed back. In particular, there is no special "error"
                  * message returned for incorrectly formatted control commands.
                  */
-                // Try processing as control message first.
+                // Datagrams addressed with a "TO <name>" line go straight to that user.
                 String response = null;
-                if ((response = processAsControlMessage(dgram)) != null) {
+                int action = TrafficCapture.RELAYED;
+                long delay = 0;
+                List<Integer> corrupted = capture != null ? new ArrayList<>() : null;
+                if (isAddressed(dgram) && cinfo != null) {
+                    log.fine("Addressed message from " + sender + " : " + truncate(dgram));
+                    delay = mangle(getAddressedMessage(dgram), srcsock, corrupted);
+                }
+                // Then try processing as control message.
+                else if ((response = processAsControlMessage(dgram)) != null) {
                     log.fine("Control message from/to " + sender + " : " +
                             truncate(dgram).trim() + " -> " + truncate(response));
                     dgram.setData(response.getBytes());
                     send(dgram);
+                    stateChanged = true;
+                    action = TrafficCapture.CONTROL;
                 }
                 // else check for relaying
                 else if (isRelaying(dgram)) {
                     log.fine("Relay message from " + sender + " to " + getPeerString(dgram) + " : " + truncate(dgram));
-                    InetSocketAddress isaddr = (InetSocketAddress) dgram.getSocketAddress();
-                    mangle(getRelayMessage(dgram), isaddr);
+                    delay = mangle(getRelayMessage(dgram), srcsock, corrupted);
                 }
                 // else simply echo back to sender
                 else {
                     send(dgram); // simply echo datagram by default
                     log.fine("Echo message from/to " + sender + ": " + truncate(dgram));
+                    action = TrafficCapture.ECHOED;
+                }
+                if (capture != null) {
+                    if (delay < 0) action = TrafficCapture.DROPPED;
+                    capture.record(captureTime, action, srcsock, (InetSocketAddress) dgram.getSocketAddress(),
+                            delay, corrupted, ingress);
                 }
             } catch (Exception e) {
                 log.warning("Exception #" + num_excepts + ": " + e);
                 try {
-                    if (++num_excepts > 3) tryRecover();
+                    if (++num_excepts > 3) {
+                        tryRecover();
+                        num_excepts = 0;
+                    }
                 } // A hail mary pass before giving up
                 catch (Exception efatal) {
                     log.severe("Unable to recover from Exception, giving up: " + efatal);
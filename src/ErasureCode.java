@@ -0,0 +1,25 @@
+/* An erasure code over equally long blocks, used for forward error
+ * correction: repair blocks computed from a group of data blocks let the
+ * receiver rebuild lost data blocks without waiting for a retransmission.
+ */
+public interface ErasureCode {
+    // Identifies the code in repair segments so the receiver can pick the same one, 0-255
+    int id();
+
+    // Largest number of repair blocks the code can compute for a group of groupSize
+    int maxRepairCount(int groupSize);
+
+    // Computes repairCount repair blocks from the data blocks
+    byte[][] encode(byte[][] data, int repairCount);
+
+    /* Rebuilds the null entries of data from the non-null repair blocks, in
+     * place. Returns false, leaving data untouched, if too many are missing.
+     */
+    boolean decode(byte[][] data, byte[][] repairs);
+
+    static ErasureCode forId(int id) {
+        if (id == XorCode.ID) return new XorCode();
+        if (id == ReedSolomonCode.ID) return new ReedSolomonCode();
+        return null;
+    }
+}
@@ -0,0 +1,33 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+// Reads a stream chunk by chunk as the window advances
+class InputStreamSource implements SegmentSource {
+    private final InputStream in;
+    private boolean finished = false;
+
+    InputStreamSource(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public byte[] next(int maxLength) throws IOException {
+        byte[] chunk = new byte[maxLength];
+        int length = 0;
+        while (length < chunk.length) {
+            int read = in.read(chunk, length, chunk.length - length);
+            if (read < 0) {
+                finished = true;
+                break;
+            }
+            length += read;
+        }
+        return length == chunk.length ? chunk : Arrays.copyOf(chunk, length);
+    }
+
+    @Override
+    public boolean finished() {
+        return finished;
+    }
+}
@@ -0,0 +1,47 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/* Reads a file through a sliding memory-mapped region, so arbitrarily
+ * large files are sent without mapping or buffering them whole.
+ */
+class MappedFileSource implements SegmentSource {
+    private static final long MAP_REGION_SIZE = 1 << 20; // bytes mapped at a time
+
+    private final FileChannel file;
+    private long position;
+    private MappedByteBuffer region = null;
+    private boolean finished = false;
+
+    MappedFileSource(FileChannel file) throws IOException {
+        this.file = file;
+        this.position = file.position();
+    }
+
+    @Override
+    public byte[] next(int maxLength) throws IOException {
+        byte[] chunk = new byte[maxLength];
+        int length = 0;
+        while (length < chunk.length) {
+            if (region == null || !region.hasRemaining()) {
+                long size = Math.min(MAP_REGION_SIZE, file.size() - position);
+                if (size <= 0) {
+                    finished = true;
+                    break;
+                }
+                region = file.map(FileChannel.MapMode.READ_ONLY, position, size);
+                position += size;
+            }
+            int read = Math.min(chunk.length - length, region.remaining());
+            region.get(chunk, length, read);
+            length += read;
+        }
+        return length == chunk.length ? chunk : Arrays.copyOf(chunk, length);
+    }
+
+    @Override
+    public boolean finished() {
+        return finished;
+    }
+}
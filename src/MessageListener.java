@@ -0,0 +1,27 @@
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/* Callback through which a ReliableSession hands reassembled messages
+ * to the application. Callbacks of one session are delivered in order
+ * and never concurrently, but not on the pool's I/O thread, so a slow
+ * listener does not hold up other sessions.
+ */
+public interface MessageListener {
+    void onMessage(ReliableSession session, String message);
+
+    // Called for messages sent with ReliableSession.send(byte[]); ignored unless overridden
+    default void onBinaryMessage(ReliableSession session, byte[] message) {
+    }
+
+    /* Called when a peer starts a bulk stream. The stream's data is written
+     * to the returned channel as it arrives in order; returning null
+     * discards the stream.
+     */
+    default WritableByteChannel onStreamStart(ReliableSession session) throws IOException {
+        return null;
+    }
+
+    // Called after the last byte of a stream was written; the channel is not closed by the session
+    default void onStreamEnd(ReliableSession session, WritableByteChannel channel) throws IOException {
+    }
+}
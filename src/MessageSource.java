@@ -0,0 +1,38 @@
+import java.util.Arrays;
+
+/* Splits an in-memory message into segment payloads. Text is only split
+ * between UTF-8 sequences, so every segment holds whole characters.
+ */
+class MessageSource implements SegmentSource {
+    private static final int MAX_UTF8_SEQUENCE_LENGTH = 4;
+    private final byte[] data;
+    private final boolean text;
+    private int start = 0;
+
+    MessageSource(byte[] data, boolean text) {
+        this.data = data;
+        this.text = text;
+    }
+
+    @Override
+    public byte[] next(int maxLength) {
+        int end = Math.min(data.length, start + maxLength);
+        if (text && maxLength >= MAX_UTF8_SEQUENCE_LENGTH) {
+            while (end < data.length && isContinuationByte(data[end])) {
+                end--;
+            }
+        }
+        byte[] segmentData = Arrays.copyOfRange(data, start, end);
+        start = end;
+        return segmentData;
+    }
+
+    private static boolean isContinuationByte(byte b) {
+        return (b & 0xc0) == 0x80;
+    }
+
+    @Override
+    public boolean finished() {
+        return start == data.length;
+    }
+}
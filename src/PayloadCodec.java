@@ -0,0 +1,14 @@
+import java.io.IOException;
+
+/* Compresses whole message payloads before they are segmented. The id is
+ * sent along with every compressed message so the receiver can pick the
+ * matching codec from the ones registered with its session.
+ */
+public interface PayloadCodec {
+    // Identifies the codec on the wire, 0-255
+    int id();
+
+    byte[] compress(byte[] data);
+
+    byte[] decompress(byte[] data) throws IOException;
+}
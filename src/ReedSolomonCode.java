@@ -0,0 +1,146 @@
+/* Systematic Reed-Solomon erasure code over GF(2^8). Repair block j is
+ * the product of row j of a Cauchy matrix with the data blocks; every
+ * square submatrix of a Cauchy matrix is invertible, so any m losses in a
+ * group can be repaired from any m repair blocks.
+ */
+public class ReedSolomonCode implements ErasureCode {
+    static final int ID = 2;
+    private static final int FIELD_SIZE = 256;
+    private static final int PRIMITIVE_POLYNOMIAL = 0x11d;
+    private static final int[] EXP = new int[2 * FIELD_SIZE];
+    private static final int[] LOG = new int[FIELD_SIZE];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < FIELD_SIZE - 1; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= FIELD_SIZE) x ^= PRIMITIVE_POLYNOMIAL;
+        }
+        for (int i = FIELD_SIZE - 1; i < EXP.length; i++) {
+            EXP[i] = EXP[i - (FIELD_SIZE - 1)];
+        }
+    }
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public int maxRepairCount(int groupSize) {
+        return FIELD_SIZE - groupSize;
+    }
+
+    @Override
+    public byte[][] encode(byte[][] data, int repairCount) {
+        byte[][] repairs = new byte[repairCount][data[0].length];
+        for (int j = 0; j < repairCount; j++) {
+            for (int i = 0; i < data.length; i++) {
+                mulAdd(repairs[j], coefficient(data.length, j, i), data[i]);
+            }
+        }
+        return repairs;
+    }
+
+    @Override
+    public boolean decode(byte[][] data, byte[][] repairs) {
+        int k = data.length;
+        int[] missing = new int[k];
+        int missingCount = 0;
+        for (int i = 0; i < k; i++) {
+            if (data[i] == null) missing[missingCount++] = i;
+        }
+        if (missingCount == 0) return true;
+        int[] rows = new int[missingCount];
+        int rowCount = 0;
+        for (int j = 0; j < repairs.length && rowCount < missingCount; j++) {
+            if (repairs[j] != null) rows[rowCount++] = j;
+        }
+        if (rowCount < missingCount) return false;
+
+        /* For each chosen repair row, subtract (XOR) the known data blocks to
+         * leave a system over the missing blocks only, then solve it with the
+         * inverse of the corresponding Cauchy submatrix.
+         */
+        int length = repairs[rows[0]].length;
+        byte[][] syndromes = new byte[missingCount][];
+        int[][] matrix = new int[missingCount][missingCount];
+        for (int r = 0; r < missingCount; r++) {
+            syndromes[r] = repairs[rows[r]].clone();
+            for (int i = 0; i < k; i++) {
+                if (data[i] != null) mulAdd(syndromes[r], coefficient(k, rows[r], i), data[i]);
+            }
+            for (int c = 0; c < missingCount; c++) {
+                matrix[r][c] = coefficient(k, rows[r], missing[c]);
+            }
+        }
+        int[][] inverse = invert(matrix);
+        for (int c = 0; c < missingCount; c++) {
+            byte[] block = new byte[length];
+            for (int r = 0; r < missingCount; r++) {
+                mulAdd(block, inverse[c][r], syndromes[r]);
+            }
+            data[missing[c]] = block;
+        }
+        return true;
+    }
+
+    // Entry (row, col) of the Cauchy matrix 1 / (x_row + y_col) with x_row = k + row, y_col = col
+    private static int coefficient(int k, int row, int col) {
+        return inverse((k + row) ^ col);
+    }
+
+    private static int multiply(int a, int b) {
+        if (a == 0 || b == 0) return 0;
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int inverse(int a) {
+        return EXP[FIELD_SIZE - 1 - LOG[a]];
+    }
+
+    // into += factor * block
+    private static void mulAdd(byte[] into, int factor, byte[] block) {
+        if (factor == 0) return;
+        for (int i = 0; i < into.length; i++) {
+            into[i] ^= multiply(factor, block[i] & 0xff);
+        }
+    }
+
+    // Gauss-Jordan elimination over GF(2^8)
+    private static int[][] invert(int[][] matrix) {
+        int n = matrix.length;
+        int[][] a = new int[n][];
+        int[][] inverse = new int[n][n];
+        for (int i = 0; i < n; i++) {
+            a[i] = matrix[i].clone();
+            inverse[i][i] = 1;
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (a[pivot][col] == 0) pivot++;
+            int[] tmp = a[col];
+            a[col] = a[pivot];
+            a[pivot] = tmp;
+            tmp = inverse[col];
+            inverse[col] = inverse[pivot];
+            inverse[pivot] = tmp;
+            int scale = inverse(a[col][col]);
+            for (int c = 0; c < n; c++) {
+                a[col][c] = multiply(a[col][c], scale);
+                inverse[col][c] = multiply(inverse[col][c], scale);
+            }
+            for (int r = 0; r < n; r++) {
+                int factor = a[r][col];
+                if (r == col || factor == 0) continue;
+                for (int c = 0; c < n; c++) {
+                    a[r][c] ^= multiply(factor, a[col][c]);
+                    inverse[r][c] ^= multiply(factor, inverse[col][c]);
+                }
+            }
+        }
+        return inverse;
+    }
+}
@@ -0,0 +1,1049 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* One reliable messaging session with the ChannelEmulator. All protocol
+ * state lives in the instance, so a process can hold as many sessions as
+ * it likes; they share the I/O thread, timer scheduler and executors of
+ * the SessionPool that opened them.
+ *
+ * Messages passed to send() and streams passed to sendStream()/sendFile()
+ * are queued and sent back to back with a selective repeat sliding window.
+ * Sequence numbers run on across transfers and wrap modulo SEQUENCE_SPACE;
+ * the last segment of every transfer carries FIN so the receiver knows
+ * where it ends. The returned future completes once every segment of the
+ * transfer has been acknowledged.
+ *
+ * Every ACK also advertises how many segments the receiver can still
+ * buffer for its listener. The sender never has more segments in flight
+ * than the last advertised window and, while the window is closed, probes
+ * it with a single segment at growing intervals.
+ *
+ * With batching on, short messages sent while earlier segments are still
+ * unacknowledged are held back and packed into one batch message, which
+ * is sent once everything in flight is acknowledged, once it fills a
+ * segment, or after the maximum hold time, whichever comes first. Each
+ * message in a batch is framed by a byte with its BINARY flag and a two
+ * byte length, and the receiver hands them to the listener one by one.
+ */
+public class ReliableSession implements Closeable {
+    static final int MAX_MSG_SIZE = 128; // bytes per datagram, header included
+    private static final int MAX_WINDOW_SIZE = 16;
+    static final int SEQUENCE_SPACE = 1 << 16; // must be a multiple of 2 * MAX_WINDOW_SIZE
+    private static final byte ACK_RECEIVED = '1';
+    private static final byte ACK_CORRUPTED = '0';
+    private static final byte ACK_REPAIRED = '2'; // rebuilt from repair segments
+    private static final double LOSS_SMOOTHING = 0.1; // weight of a new sample in lossRate
+    private static final double ADAPTIVE_REDUNDANCY_FACTOR = 1.5; // repair segments per expected loss
+    private static final int RECEIVE_BUFFER_SIZE = 64 * 1024; // default bytes awaiting the listener
+    private static final int MIN_PROBE_INTERVAL = 500; // ms before the first zero window probe
+    private static final int MAX_PROBE_INTERVAL = 16000;
+    private static final int BATCH_FRAME_HEADER_LENGTH = 3; // flags, message length
+    private static final int CONTROL_TIMEOUT = 5000; // ms to wait for the response to a control command
+
+    private final SessionPool pool;
+    private final DatagramChannel channel;
+    private final InetSocketAddress server;
+    private volatile MessageListener listener = null;
+    private volatile String myUsername = null;
+    private volatile Step step = Step.ECHO;
+    private volatile String relayingTo;
+    private volatile boolean closed = false;
+
+    /* Sending side. outgoing holds transfers whose segments are still being
+     * produced, unacked those fully segmented but not yet fully acknowledged.
+     * [sendBase, nextSeq) is the window of segments in flight, kept in a ring
+     * indexed by sequence number.
+     */
+    private final Queue<Transfer> outgoing = new ArrayDeque<>();
+    private final Queue<Transfer> unacked = new ArrayDeque<>();
+    private final Segment[] window = new Segment[MAX_WINDOW_SIZE];
+    private final boolean[] received = new boolean[MAX_WINDOW_SIZE];
+    private int sendBase, nextSeq;
+    private boolean synPending = true;
+    private String synPeer = null; // peer the current sequence numbers were started with
+    private boolean pumping = false; // a stream is being read on the stream executor
+    private final int[] transmissions = new int[MAX_WINDOW_SIZE];
+    private final Map<Integer, Timer> timers = new HashMap<>();
+
+    // Flow control: the window last advertised by the peer, and the zero window probe
+    private int peerWindow = MAX_WINDOW_SIZE;
+    private boolean probeDue = false;
+    private int probeInterval = MIN_PROBE_INTERVAL;
+    private ScheduledFuture<?> probe = null;
+
+    /* Forward error correction, off while fecCode is null. Every fecGroupSize
+     * data segments (or fewer, at the end of a transfer) are followed by
+     * repair segments, fecRedundancy of them per data segment, or as many as
+     * lossRate calls for in adaptive mode.
+     */
+    private ErasureCode fecCode = null;
+    private int fecGroupSize;
+    private double fecRedundancy;
+    private boolean fecAdaptive = false;
+    private double lossRate = 0.1; // share of segments that needed a retransmission or repair
+    private final List<Segment> fecGroup = new ArrayList<>();
+
+    /* Batching, off while batchHold is 0. batch holds the framed messages
+     * not sent yet and batchFutures their futures; batchTimer sends the
+     * batch once its first message has been held for batchHold ms.
+     */
+    private long batchHold = 0;
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    private final List<CompletableFuture<Void>> batchFutures = new ArrayList<>();
+    private ScheduledFuture<?> batchTimer = null;
+
+    // Per-message compression; codecs maps codec ids to codecs for decompressing
+    private volatile PayloadCodec sendCodec = null;
+    private final Map<Integer, PayloadCodec> codecs = new ConcurrentHashMap<>();
+
+    // Receiving side, per sender name
+    private final Map<String, ReceiveState> receiveStates = new HashMap<>();
+
+    /* Bytes handed to deliver() but not yet consumed by the listener. The
+     * window advertised in ACKs is the room left in receiveBufferSize;
+     * windowClosed is set while some sender was told the window is zero.
+     */
+    private final AtomicInteger backlog = new AtomicInteger();
+    private volatile int receiveBufferSize = RECEIVE_BUFFER_SIZE;
+    private volatile boolean windowClosed = false;
+
+    // Control commands awaiting a response, oldest first
+    private final Queue<PendingControl> pendingControls = new ConcurrentLinkedQueue<>();
+
+    // Listener callbacks and future completions, run in order off the I/O thread
+    private final Queue<Runnable> deliveries = new ArrayDeque<>();
+    private boolean delivering = false;
+
+    /* A control command waiting for its response, which is the oldest
+     * response starting with expected, or any !OK response.
+     */
+    private static class PendingControl {
+        final String expected;
+        final CompletableFuture<String> future = new CompletableFuture<>();
+
+        PendingControl(String command) {
+            String cmd = command.trim().split("\\s")[0];
+            if (cmd.equals("NAME")) expected = "OK Hello";
+            else if (cmd.equals("CONN")) expected = "OK Relaying to";
+            else if (cmd.equals(".")) expected = "OK Not relaying";
+            else if (cmd.equals("CHNL") || cmd.equals("LIST")) expected = "OK " + cmd;
+            else if (cmd.equals("QUIT")) expected = "OK Bye";
+            else expected = "OK";
+        }
+
+        boolean matches(String response) {
+            return response.startsWith(expected) || response.startsWith("!OK");
+        }
+    }
+
+    private static class Transfer {
+        final SegmentSource source;
+        final int flags; // STREAM, COMPRESSED and BINARY flags of all its segments
+        final boolean stream;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        int lastSeq; // sequence number of the FIN segment, once it is sent
+        IOException failure = null; // set if reading the source failed
+
+        Transfer(SegmentSource source, int flags) {
+            this.source = source;
+            this.flags = flags;
+            this.stream = (flags & Segment.FLAG_STREAM) != 0;
+        }
+    }
+
+    /* Reassembly state for one sender: a receive window of MAX_WINDOW_SIZE
+     * out-of-order segments starting at rcvBase, plus the message or stream
+     * that the in-order segments are currently appended to. The buffer also
+     * keeps the window delivered last, which repair groups may still need.
+     */
+    private static class ReceiveState {
+        final int isn; // sequence number of the SYN that started this sequence
+        int rcvBase;
+        final Segment[] buffer = new Segment[2 * MAX_WINDOW_SIZE];
+        final Map<Integer, RepairGroup> repairGroups = new HashMap<>();
+        final ByteArrayOutputStream message = new ByteArrayOutputStream();
+        IncomingStream stream = null;
+        boolean windowClosed = false; // the last ACK sent advertised a zero window
+
+        ReceiveState(int isn) {
+            this.isn = isn;
+            this.rcvBase = isn;
+        }
+
+        Segment get(int seqNum) {
+            Segment segment = buffer[seqNum % buffer.length];
+            return segment != null && segment.getSequenceNumber() == seqNum ? segment : null;
+        }
+
+        // In the receive window or in the window just delivered, whose ACKs may have been lost
+        boolean isRecent(int seqNum) {
+            int offset = offset(seqNum, rcvBase);
+            return offset < MAX_WINDOW_SIZE || offset >= SEQUENCE_SPACE - MAX_WINDOW_SIZE;
+        }
+    }
+
+    // Only touched by delivery tasks, which run one at a time
+    private static class IncomingStream {
+        WritableByteChannel channel;
+    }
+
+    ReliableSession(SessionPool pool, DatagramChannel channel, InetSocketAddress server) {
+        this.pool = pool;
+        this.channel = channel;
+        this.server = server;
+        registerCodec(new DeflateCodec());
+    }
+
+    public void setMessageListener(MessageListener listener) {
+        this.listener = listener;
+    }
+
+    public String getUsername() {
+        return myUsername;
+    }
+
+    public Step getStep() {
+        return step;
+    }
+
+    public String getRelayingTo() {
+        return relayingTo;
+    }
+
+    /* Protects every groupSize data segments with repair segments computed
+     * with code, redundancy of them per data segment (at least one), so
+     * that lost segments can be rebuilt by the receiver.
+     */
+    public synchronized void setFec(ErasureCode code, int groupSize, double redundancy) {
+        flushFecGroup();
+        fecCode = code;
+        fecGroupSize = Math.max(1, Math.min(groupSize, MAX_WINDOW_SIZE));
+        fecRedundancy = redundancy;
+        fecAdaptive = false;
+    }
+
+    // Like setFec, but the number of repair segments follows the loss rate observed from ACKs
+    public synchronized void setAdaptiveFec(ErasureCode code, int groupSize) {
+        setFec(code, groupSize, 0);
+        fecAdaptive = true;
+    }
+
+    public synchronized void disableFec() {
+        flushFecGroup();
+        fecCode = null;
+    }
+
+    /* Packs short messages sent while others are in flight together,
+     * holding each for at most maxHoldMillis; 0 turns batching off and
+     * sends what is held right away.
+     */
+    public synchronized void setBatching(long maxHoldMillis) {
+        batchHold = Math.max(0, maxHoldMillis);
+        if (batchHold == 0) flushBatch();
+    }
+
+    /* Sets how many received bytes may wait for the listener before the
+     * peers are asked to stop sending. Messages still being reassembled
+     * are not counted, so messages larger than this still get through.
+     */
+    public void setReceiveBufferSize(int bytes) {
+        receiveBufferSize = Math.max(MAX_MSG_SIZE, bytes);
+    }
+
+    DatagramChannel getChannel() {
+        return channel;
+    }
+
+    /* Sends a control command (NAME, CONN, CHNL, ., ...) unreliably. The
+     * future completes with the server's OK/!OK response to that command,
+     * or fails after CONTROL_TIMEOUT if either the command or the response
+     * is lost, so a lost response is never taken for the next command's.
+     */
+    public CompletableFuture<String> sendControl(String command) {
+        PendingControl pending = new PendingControl(command);
+        pendingControls.add(pending);
+        try {
+            sendUnreliable(command + "\n");
+            pool.scheduler().schedule(() -> {
+                if (pendingControls.remove(pending)) {
+                    deliver(() -> pending.future.completeExceptionally(
+                            new IOException("No response to " + command.trim())));
+                }
+            }, CONTROL_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            pendingControls.remove(pending);
+            pending.future.completeExceptionally(e);
+        }
+        return pending.future;
+    }
+
+    // Queues a text message for reliable delivery to the current peer
+    public CompletableFuture<Void> send(String message) {
+        return sendMessage(message.getBytes(StandardCharsets.UTF_8), 0);
+    }
+
+    // Queues a binary message, handed to the peer's MessageListener.onBinaryMessage
+    public CompletableFuture<Void> send(byte[] message) {
+        return sendMessage(message, Segment.FLAG_BINARY);
+    }
+
+    private CompletableFuture<Void> sendMessage(byte[] message, int flags) {
+        CompletableFuture<Void> future = addToBatch(message, flags);
+        return future != null ? future : enqueue(messageTransfer(message, flags));
+    }
+
+    private Transfer messageTransfer(byte[] message, int flags) {
+        PayloadCodec codec = sendCodec;
+        if (codec != null) {
+            byte[] compressed = compress(codec, message);
+            if (compressed.length < message.length) {
+                return new Transfer(new MessageSource(compressed, false), flags | Segment.FLAG_COMPRESSED);
+            }
+        }
+        return new Transfer(new MessageSource(message, flags == 0), flags);
+    }
+
+    /* Adds the message to the batch and returns its future, or returns null
+     * if it is to be sent on its own: when batching is off, when nothing is
+     * in flight, or when it does not fit in one segment with its frame.
+     */
+    private synchronized CompletableFuture<Void> addToBatch(byte[] message, int flags) {
+        if (batchHold == 0 || closed) return null;
+        int capacity = payloadCapacity(Segment.FLAG_BATCH);
+        if (message.length + BATCH_FRAME_HEADER_LENGTH > capacity) {
+            flushBatch(); // keeps messages in order
+            return null;
+        }
+        if (batch.size() == 0 && inFlightCount() == 0 && outgoing.isEmpty()) return null;
+        if (batch.size() + BATCH_FRAME_HEADER_LENGTH + message.length > capacity) flushBatch();
+        batch.write(flags);
+        batch.write(message.length >> 8);
+        batch.write(message.length);
+        batch.write(message, 0, message.length);
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        batchFutures.add(future);
+        if (batch.size() >= capacity) {
+            flushBatch();
+        } else if (batchTimer == null) {
+            batchTimer = pool.scheduler().schedule(this::flushBatch, batchHold, TimeUnit.MILLISECONDS);
+        }
+        return future;
+    }
+
+    // Sends the held messages as one batch message
+    private synchronized void flushBatch() {
+        if (batchTimer != null) {
+            batchTimer.cancel(false);
+            batchTimer = null;
+        }
+        if (batch.size() == 0) return;
+        Transfer transfer = messageTransfer(batch.toByteArray(), Segment.FLAG_BATCH);
+        List<CompletableFuture<Void>> futures = new ArrayList<>(batchFutures);
+        batch.reset();
+        batchFutures.clear();
+        transfer.future.whenComplete((v, e) -> {
+            for (CompletableFuture<Void> future : futures) {
+                if (e != null) future.completeExceptionally(e);
+                else future.complete(null);
+            }
+        });
+        enqueue(transfer);
+    }
+
+    /* Compresses messages sent from now on with codec, or stops compressing
+     * if it is null. Messages that do not get shorter are sent as they are.
+     */
+    public void setCompression(PayloadCodec codec) {
+        if (codec != null) registerCodec(codec);
+        sendCodec = codec;
+    }
+
+    // Makes codec available for decompressing received messages
+    public void registerCodec(PayloadCodec codec) {
+        codecs.put(codec.id(), codec);
+    }
+
+    // Compressed payloads start with the id of the codec
+    private static byte[] compress(PayloadCodec codec, byte[] message) {
+        byte[] compressed = codec.compress(message);
+        byte[] payload = new byte[compressed.length + 1];
+        payload[0] = (byte) codec.id();
+        System.arraycopy(compressed, 0, payload, 1, compressed.length);
+        return payload;
+    }
+
+    private byte[] decompress(byte[] payload) throws IOException {
+        PayloadCodec codec = payload.length > 0 ? codecs.get(payload[0] & 0xff) : null;
+        if (codec == null) throw new IOException("Unknown payload codec");
+        return codec.decompress(Arrays.copyOfRange(payload, 1, payload.length));
+    }
+
+    /* Queues a bulk transfer of everything readable from in. The stream is
+     * only read as the window advances, on the pool's stream executor, and
+     * is not closed by the session.
+     */
+    public CompletableFuture<Void> sendStream(InputStream in) {
+        return enqueue(new Transfer(new InputStreamSource(in), Segment.FLAG_STREAM));
+    }
+
+    // Queues a bulk transfer of the file from its current position, read through a sliding mapping
+    public CompletableFuture<Void> sendFile(FileChannel file) {
+        try {
+            return enqueue(new Transfer(new MappedFileSource(file), Segment.FLAG_STREAM));
+        } catch (IOException e) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    private synchronized CompletableFuture<Void> enqueue(Transfer transfer) {
+        if (batch.size() > 0 && (transfer.flags & Segment.FLAG_BATCH) == 0) flushBatch();
+        if (closed) {
+            transfer.future.completeExceptionally(new IOException("Session is closed"));
+            return transfer.future;
+        }
+        if (payloadCapacity(transfer.flags | Segment.FLAG_SYN, SEQUENCE_SPACE - 1) < 1) {
+            transfer.future.completeExceptionally(new IOException("Username too long to leave room for any payload"));
+            return transfer.future;
+        }
+        outgoing.add(transfer);
+        fillWindow();
+        return transfer.future;
+    }
+
+    private static int offset(int seqNum, int base) {
+        return (seqNum - base + SEQUENCE_SPACE) % SEQUENCE_SPACE;
+    }
+
+    private int inFlightCount() {
+        return offset(nextSeq, sendBase);
+    }
+
+    private boolean isInFlight(int seqNum) {
+        return offset(seqNum, sendBase) < inFlightCount();
+    }
+
+    // Segments allowed in flight: the peer's window, or the one probe segment while it is closed
+    private int sendLimit() {
+        if (peerWindow > 0) return peerWindow;
+        return probeDue ? 1 : 0;
+    }
+
+    /* Adds segments of the queued transfers to the window until it is full.
+     * Streams may block on reads, so they are pumped on the stream executor.
+     * A transfer whose source failed is ended with an empty FIN segment so the
+     * receiver does not append the next transfer to it.
+     */
+    private void fillWindow() {
+        while (!closed && !pumping && inFlightCount() < sendLimit() && !outgoing.isEmpty()) {
+            Transfer transfer = outgoing.peek();
+            if (transfer.failure != null) {
+                addSegment(transfer, new byte[0], Segment.FLAG_FIN);
+            } else if (transfer.stream) {
+                pumping = true;
+                pool.streamExecutor().execute(this::pumpStream);
+                return;
+            } else {
+                try {
+                    addSegment(transfer, transfer.source.next(payloadCapacity(transfer.flags)));
+                } catch (IOException e) {
+                    fail(transfer, e);
+                }
+            }
+        }
+        if (!pumping) scheduleProbe();
+    }
+
+    /* Once everything in flight is acknowledged but the peer's window is
+     * closed, no ACK will tell when it opens again, so after a while one
+     * segment is sent regardless. Its ACK carries the current window.
+     */
+    private void scheduleProbe() {
+        if (closed || peerWindow > 0 || probe != null || inFlightCount() > 0 || outgoing.isEmpty()) return;
+        probe = pool.scheduler().schedule(this::probeWindow, probeInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void probeWindow() {
+        probe = null;
+        probeDue = true;
+        probeInterval = Math.min(2 * probeInterval, MAX_PROBE_INTERVAL);
+        fillWindow();
+    }
+
+    // Takes the window from a valid ACK; an opened window ends probing
+    private void updatePeerWindow(byte[] ackData) {
+        if (ackData.length < 2) return; // no window advertised
+        peerWindow = Math.min(ackData[1] & 0xff, MAX_WINDOW_SIZE);
+        if (peerWindow > 0) {
+            probeInterval = MIN_PROBE_INTERVAL;
+            if (probe != null) {
+                probe.cancel(false);
+                probe = null;
+            }
+        }
+    }
+
+    private void pumpStream() {
+        while (true) {
+            Transfer transfer;
+            int capacity;
+            synchronized (this) {
+                transfer = outgoing.peek();
+                if (closed || transfer == null || !transfer.stream || transfer.failure != null
+                        || inFlightCount() >= sendLimit()) {
+                    pumping = false;
+                    fillWindow();
+                    return;
+                }
+                capacity = payloadCapacity(transfer.flags);
+            }
+            try {
+                byte[] data = transfer.source.next(capacity);
+                synchronized (this) {
+                    if (!closed) addSegment(transfer, data);
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    fail(transfer, e);
+                }
+            }
+        }
+    }
+
+    private void fail(Transfer transfer, IOException e) {
+        transfer.failure = e;
+        transfer.future.completeExceptionally(e);
+    }
+
+    /* Number of payload bytes that fill the next segment of a transfer with
+     * these flags up to MAX_MSG_SIZE. With FEC on, room is left for the
+     * larger repair segments.
+     */
+    private int payloadCapacity(int transferFlags) {
+        startSequence();
+        int flags = transferFlags | (synPending ? Segment.FLAG_SYN : 0);
+        // enqueue() refuses transfers without room; at least 1 in case the name or FEC changed since
+        return Math.max(1, payloadCapacity(flags, nextSeq));
+    }
+
+    // As above for a segment numbered seqNum, or 0 or less if the headers leave no room at all
+    private int payloadCapacity(int flags, int seqNum) {
+        int capacity = MAX_MSG_SIZE - Segment.headerLength(seqNum, 0, flags | Segment.FLAG_FIN, myUsername);
+        if (fecCode != null) {
+            capacity = Math.min(capacity, MAX_MSG_SIZE - Segment.headerLength(SEQUENCE_SPACE - 1,
+                    MAX_WINDOW_SIZE, Segment.FLAG_REPAIR, myUsername) - RepairGroup.REPAIR_OVERHEAD);
+        }
+        return capacity;
+    }
+
+    // Starts a fresh sequence, with a random initial sequence number, for every new peer
+    private void startSequence() {
+        String peer = String.valueOf(step == Step.RELAYING ? relayingTo : myUsername);
+        if (inFlightCount() == 0 && !peer.equals(synPeer)) {
+            synPeer = peer;
+            synPending = true;
+            sendBase = nextSeq = ThreadLocalRandom.current().nextInt(SEQUENCE_SPACE);
+            peerWindow = MAX_WINDOW_SIZE;
+        }
+    }
+
+    private void addSegment(Transfer transfer, byte[] data) {
+        addSegment(transfer, data, transfer.source.finished() ? Segment.FLAG_FIN : 0);
+    }
+
+    private void addSegment(Transfer transfer, byte[] data, int flags) {
+        startSequence();
+        flags |= transfer.flags;
+        if (synPending) {
+            flags |= Segment.FLAG_SYN;
+            synPending = false;
+        }
+        probeDue = false;
+        Segment segment = new Segment(nextSeq, data, flags, myUsername);
+        window[nextSeq % MAX_WINDOW_SIZE] = segment;
+        received[nextSeq % MAX_WINDOW_SIZE] = false;
+        transmissions[nextSeq % MAX_WINDOW_SIZE] = 0;
+        nextSeq = (nextSeq + 1) % SEQUENCE_SPACE;
+        if (segment.hasFlag(Segment.FLAG_FIN)) {
+            outgoing.remove(transfer);
+            transfer.lastSeq = segment.getSequenceNumber();
+            if (!transfer.future.isDone()) unacked.add(transfer);
+        }
+        addTimer(segment);
+        if (fecCode != null) {
+            fecGroup.add(segment);
+            if (fecGroup.size() == fecGroupSize || segment.hasFlag(Segment.FLAG_FIN)) flushFecGroup();
+        }
+    }
+
+    // Sends the repair segments of the data segments collected so far, once each
+    private void flushFecGroup() {
+        if (fecGroup.isEmpty()) return;
+        double redundancy = fecAdaptive ? lossRate * ADAPTIVE_REDUNDANCY_FACTOR : fecRedundancy;
+        int repairCount = Math.min((int) Math.ceil(fecGroup.size() * redundancy),
+                RepairGroup.maxRepairCount(fecGroup.size(), fecCode));
+        if (!fecAdaptive) repairCount = Math.max(1, repairCount);
+        if (repairCount > 0) {
+            Segment first = fecGroup.get(0);
+            for (byte[] data : RepairGroup.encode(fecGroup, fecCode, repairCount)) {
+                Segment repair = new Segment(first.getSequenceNumber(), data,
+                        Segment.FLAG_REPAIR, myUsername);
+                repair.setSegmentCount(fecGroup.size());
+                try {
+                    sendUnreliable(repair.serialize());
+                } catch (IOException e) {
+//                    e.printStackTrace();
+                }
+            }
+        }
+        fecGroup.clear();
+    }
+
+    // Called by the pool's I/O thread for every datagram read from the channel
+    void onDatagram(byte[] packet) {
+        if (startsWith(packet, "OK") || startsWith(packet, "!OK")) {
+            onControlResponse(new String(packet, StandardCharsets.UTF_8));
+            return;
+        }
+        try {
+            Segment segment = Segment.deserialize(packet);
+            if (segment.isAck()) {
+                onAckSegment(segment);
+            } else if (segment.hasFlag(Segment.FLAG_REPAIR)) {
+                onRepairSegment(segment);
+            } else {
+                onDataSegment(segment);
+            }
+        } catch (SegmentationFaultException | IOException | IllegalArgumentException e) {
+//            e.printStackTrace();
+        }
+    }
+
+    private static boolean startsWith(byte[] packet, String prefix) {
+        if (packet.length < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (packet[i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private void onControlResponse(String packet) {
+        if (packet.startsWith("OK Hello ")) {
+            myUsername = packet.substring("OK Hello ".length(), packet.length() - 1);
+        } else if (packet.startsWith("OK Relaying to")) {
+            String content = packet.substring("OK Relaying to".length());
+            relayingTo = content.trim().split("\\s")[0];
+            step = Step.RELAYING;
+        } else if (packet.startsWith("OK Not relaying")) {
+            step = Step.ECHO;
+        }
+        for (PendingControl pending : pendingControls) {
+            if (pending.matches(packet) && pendingControls.remove(pending)) {
+                deliver(() -> pending.future.complete(packet));
+                return;
+            }
+        }
+    }
+
+    /* Buffers segments that fall in the sender's receive window and passes
+     * them on in sequence order. Duplicates of segments that were already
+     * passed on are acknowledged again but otherwise ignored. A SYN starts
+     * a new sequence unless it repeats the one that started the current
+     * sequence, however far that sequence has moved on since.
+     */
+    private synchronized void onDataSegment(Segment segment) throws IOException {
+        if (!segment.isIntact()) {
+            // The sender name failed the checksum too; only answer senders we already hear from
+            if (receiveStates.containsKey(segment.getSender())) {
+                sendAck(ACK_CORRUPTED, segment.getSequenceNumber(), segment.getSender());
+            }
+            return;
+        }
+        int seqNum = segment.getSequenceNumber();
+        ReceiveState state = receiveStates.get(segment.getSender());
+        if (segment.hasFlag(Segment.FLAG_SYN)) {
+            if (state == null || seqNum != state.isn) {
+                state = new ReceiveState(seqNum);
+                receiveStates.put(segment.getSender(), state);
+            } else if (!state.isRecent(seqNum)) {
+                sendAck(ACK_RECEIVED, seqNum, segment.getSender()); // delayed duplicate of the SYN
+                return;
+            }
+        }
+        if (state == null || !state.isRecent(seqNum)) {
+            return; // sequence not started yet, the sender keeps retransmitting its SYN
+        }
+        accept(state, segment);
+        sendAck(ACK_RECEIVED, seqNum, segment.getSender());
+        if (!state.repairGroups.isEmpty()) tryRepair(state, segment.getSender());
+    }
+
+    private void accept(ReceiveState state, Segment segment) {
+        int seqNum = segment.getSequenceNumber();
+        if (offset(seqNum, state.rcvBase) >= MAX_WINDOW_SIZE) return;
+        state.buffer[seqNum % state.buffer.length] = segment;
+        Segment next;
+        while ((next = state.get(state.rcvBase)) != null) {
+            state.rcvBase = (state.rcvBase + 1) % SEQUENCE_SPACE;
+            deliverData(state, next);
+        }
+    }
+
+    private synchronized void onRepairSegment(Segment segment) throws IOException {
+        ReceiveState state = receiveStates.get(segment.getSender());
+        if (!segment.isIntact() || state == null) return;
+        int start = segment.getSequenceNumber();
+        RepairGroup group = state.repairGroups.get(start);
+        if (group == null || group.size != segment.getSegmentCount()) {
+            ErasureCode code = ErasureCode.forId(RepairGroup.parseCodeId(segment));
+            if (code == null || segment.getSegmentCount() < 1 || segment.getSegmentCount() > MAX_WINDOW_SIZE) return;
+            group = new RepairGroup(start, segment.getSegmentCount(), code);
+            state.repairGroups.put(start, group);
+        }
+        if (group.addRepair(segment)) tryRepair(state, segment.getSender());
+    }
+
+    /* Rebuilds what it can of the groups with repair segments and forgets the
+     * groups that have been delivered in full. Rebuilt segments are
+     * acknowledged like received ones, so the sender stops retransmitting.
+     */
+    private void tryRepair(ReceiveState state, String sender) throws IOException {
+        Iterator<RepairGroup> groups = state.repairGroups.values().iterator();
+        while (groups.hasNext()) {
+            RepairGroup group = groups.next();
+            int last = (group.start + group.size - 1) % SEQUENCE_SPACE;
+            if (offset(last, state.rcvBase) >= MAX_WINDOW_SIZE) {
+                groups.remove(); // delivered, or too old to be of any use
+                continue;
+            }
+            Segment[] segments = new Segment[group.size];
+            boolean complete = true;
+            for (int i = 0; i < group.size; i++) {
+                segments[i] = state.get((group.start + i) % SEQUENCE_SPACE);
+                complete &= segments[i] != null;
+            }
+            if (complete) {
+                groups.remove();
+                continue;
+            }
+            Segment[] recovered = group.recover(segments, sender);
+            if (recovered == null) continue;
+            groups.remove();
+            for (Segment segment : recovered) {
+                if (segment == null) continue;
+                accept(state, segment);
+                sendAck(ACK_REPAIRED, segment.getSequenceNumber(), sender);
+            }
+        }
+    }
+
+    private synchronized void onAckSegment(Segment segment) {
+        int seqNum = segment.getSequenceNumber();
+        boolean valid = segment.isIntact();
+        if (valid) updatePeerWindow(segment.getData());
+        if (!isInFlight(seqNum)) {
+            if (valid) fillWindow(); // window update, or an ACK resent for a duplicate
+            return;
+        }
+        int slot = seqNum % MAX_WINDOW_SIZE;
+        if (valid) {
+            byte status = segment.getData().length > 0 ? segment.getData()[0] : ACK_CORRUPTED;
+            if (status != ACK_CORRUPTED) {
+                if (!received[slot]) {
+                    boolean lost = transmissions[slot] > 1 || status == ACK_REPAIRED;
+                    lossRate += LOSS_SMOOTHING * ((lost ? 1 : 0) - lossRate);
+                }
+                received[slot] = true;
+                Timer timer = timers.remove(seqNum);
+                if (timer != null) timer.kill();
+                if (seqNum == sendBase) {
+                    while (inFlightCount() > 0 && received[sendBase % MAX_WINDOW_SIZE]) {
+                        window[sendBase % MAX_WINDOW_SIZE] = null;
+                        sendBase = (sendBase + 1) % SEQUENCE_SPACE;
+                    }
+                    while (!unacked.isEmpty() && !isInFlight(unacked.peek().lastSeq)) {
+                        complete(unacked.poll().future);
+                    }
+                    if (inFlightCount() == 0 && outgoing.isEmpty()) flushBatch();
+                }
+            } else if (!received[slot]) {
+                addTimer(window[slot]);
+            }
+            fillWindow();
+        } else if (!received[slot]) {
+            addTimer(window[slot]);
+        }
+    }
+
+    // Used by a Timer to (re)send its segment
+    void transmit(Segment segment) throws IOException {
+        synchronized (this) {
+            if (window[segment.getSequenceNumber() % MAX_WINDOW_SIZE] == segment) {
+                transmissions[segment.getSequenceNumber() % MAX_WINDOW_SIZE]++;
+            }
+        }
+        sendUnreliable(segment.serialize());
+    }
+
+    // Used by a Timer to find out whether its segment still needs resending
+    synchronized boolean isReceived(Segment segment) {
+        int seqNum = segment.getSequenceNumber();
+        if (!isInFlight(seqNum) || window[seqNum % MAX_WINDOW_SIZE] != segment) {
+            return true; // segment of a window that already moved on
+        }
+        return received[seqNum % MAX_WINDOW_SIZE];
+    }
+
+    private void addTimer(Segment segment) {
+        Timer timer = new Timer(this, segment);
+        Timer prevTimer = timers.put(segment.getSequenceNumber(), timer);
+        if (prevTimer != null) {
+            prevTimer.kill();
+        }
+        timer.start(pool.scheduler());
+    }
+
+    /* Appends an in-order segment to the sender's current message, or writes
+     * it through to the channel of the current stream, and hands the message
+     * to the listener or ends the stream on FIN.
+     */
+    private void deliverData(ReceiveState state, Segment segment) {
+        if (!segment.hasFlag(Segment.FLAG_STREAM)) {
+            byte[] data = segment.getData();
+            state.message.write(data, 0, data.length);
+            if (segment.hasFlag(Segment.FLAG_FIN)) {
+                byte[] payload = state.message.toByteArray();
+                state.message.reset();
+                int flags = segment.getFlags();
+                deliverBuffered(payload.length, () -> deliverMessage(payload, flags));
+            }
+            return;
+        }
+        if (state.stream == null) {
+            IncomingStream stream = state.stream = new IncomingStream();
+            deliver(() -> {
+                MessageListener messageListener = listener;
+                try {
+                    stream.channel = messageListener != null ? messageListener.onStreamStart(this) : null;
+                } catch (IOException e) {
+                    stream.channel = null;
+                }
+            });
+        }
+        IncomingStream stream = state.stream;
+        byte[] data = segment.getData();
+        deliverBuffered(data.length, () -> {
+            if (stream.channel == null) return;
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            try {
+                while (buffer.hasRemaining()) stream.channel.write(buffer);
+            } catch (IOException e) {
+                stream.channel = null; // discard the rest of the stream
+            }
+        });
+        if (segment.hasFlag(Segment.FLAG_FIN)) {
+            state.stream = null;
+            deliver(() -> {
+                MessageListener messageListener = listener;
+                if (stream.channel == null || messageListener == null) return;
+                try {
+                    messageListener.onStreamEnd(this, stream.channel);
+                } catch (IOException e) {
+//                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    // Decompresses a reassembled message if needed and hands it to the listener
+    private void deliverMessage(byte[] payload, int flags) {
+        byte[] message = payload;
+        if ((flags & Segment.FLAG_COMPRESSED) != 0) {
+            try {
+                message = decompress(payload);
+            } catch (IOException e) {
+                return; // undecodable message, nothing to deliver
+            }
+        }
+        MessageListener messageListener = listener;
+        if (messageListener == null) return;
+        if ((flags & Segment.FLAG_BATCH) != 0) {
+            ByteBuffer frames = ByteBuffer.wrap(message);
+            while (frames.remaining() >= BATCH_FRAME_HEADER_LENGTH) {
+                int frameFlags = frames.get() & 0xff;
+                byte[] framed = new byte[Math.min(frames.getShort() & 0xffff, frames.remaining())];
+                frames.get(framed);
+                deliverMessage(messageListener, framed, frameFlags);
+            }
+        } else {
+            deliverMessage(messageListener, message, flags);
+        }
+    }
+
+    private void deliverMessage(MessageListener messageListener, byte[] message, int flags) {
+        if ((flags & Segment.FLAG_BINARY) != 0) {
+            messageListener.onBinaryMessage(this, message);
+        } else {
+            messageListener.onMessage(this, new String(message, StandardCharsets.UTF_8));
+        }
+    }
+
+    private void complete(CompletableFuture<Void> future) {
+        deliver(() -> future.complete(null));
+    }
+
+    /* Runs the task on the pool's callback executor after all earlier
+     * deliveries of this session have run.
+     */
+    private void deliver(Runnable task) {
+        synchronized (deliveries) {
+            deliveries.add(task);
+            if (delivering) return;
+            delivering = true;
+        }
+        pool.callbackExecutor().execute(this::drainDeliveries);
+    }
+
+    // Like deliver, but counts size bytes against the receive buffer until the task has run
+    private void deliverBuffered(int size, Runnable task) {
+        backlog.addAndGet(size);
+        deliver(() -> {
+            try {
+                task.run();
+            } finally {
+                backlog.addAndGet(-size);
+                if (windowClosed && advertisedWindow() >= windowUpdateThreshold()) sendWindowUpdates();
+            }
+        });
+    }
+
+    // Segments that still fit in the receive buffer, as advertised in ACKs
+    private int advertisedWindow() {
+        int free = receiveBufferSize - backlog.get();
+        return Math.max(0, Math.min(free / MAX_MSG_SIZE, MAX_WINDOW_SIZE));
+    }
+
+    // A closed window is reported open again only once a few segments fit, not for every byte consumed
+    private int windowUpdateThreshold() {
+        return Math.max(1, Math.min(MAX_WINDOW_SIZE / 4, receiveBufferSize / MAX_MSG_SIZE));
+    }
+
+    /* Tells the senders that were last sent a zero window that it opened,
+     * by acknowledging the last segment they got through once more.
+     */
+    private synchronized void sendWindowUpdates() {
+        windowClosed = false;
+        for (Map.Entry<String, ReceiveState> entry : receiveStates.entrySet()) {
+            ReceiveState state = entry.getValue();
+            if (!state.windowClosed) continue;
+            try {
+                sendAck(ACK_RECEIVED, (state.rcvBase - 1 + SEQUENCE_SPACE) % SEQUENCE_SPACE, entry.getKey());
+            } catch (IOException e) {
+//                e.printStackTrace();
+            }
+        }
+    }
+
+    private void drainDeliveries() {
+        while (true) {
+            Runnable task;
+            synchronized (deliveries) {
+                task = deliveries.poll();
+                if (task == null) {
+                    delivering = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+//                e.printStackTrace();
+            }
+        }
+    }
+
+    /* ACKs are addressed to the sender of the segment, whoever we are
+     * relaying to, and carry the status and the advertised window.
+     */
+    private void sendAck(byte status, int sequenceNumber, String user) throws IOException {
+        int advertised = advertisedWindow();
+        ReceiveState state = receiveStates.get(user);
+        if (state != null) {
+            state.windowClosed = advertised == 0;
+            if (advertised == 0) windowClosed = true;
+        }
+        byte[] data = {status, (byte) advertised};
+        Segment segment = new Segment(sequenceNumber, data, Segment.FLAG_ACK, myUsername);
+        sendUnreliable(addressTo(user, segment.serialize()));
+    }
+
+    // Prefixes a datagram with the "TO <name>" line the ChannelEmulator routes by
+    private static byte[] addressTo(String user, byte[] packet) {
+        byte[] address = ("TO " + user + "\n").getBytes(StandardCharsets.UTF_8);
+        byte[] addressed = Arrays.copyOf(address, address.length + packet.length);
+        System.arraycopy(packet, 0, addressed, address.length, packet.length);
+        return addressed;
+    }
+
+    private void sendUnreliable(String packet) throws IOException {
+        sendUnreliable(packet.getBytes(StandardCharsets.UTF_8));
+    }
+
+    void sendUnreliable(byte[] packet) throws IOException {
+        ByteBuffer sendDgram = ByteBuffer.wrap(packet);
+        channel.send(sendDgram, server);
+    }
+
+    // Stops all timers, fails queued transfers and gives the channel back to the pool
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            timers.values().forEach(Timer::kill);
+            timers.clear();
+            if (probe != null) probe.cancel(false);
+            if (batchTimer != null) batchTimer.cancel(false);
+            IOException closedException = new IOException("Session is closed");
+            for (Transfer transfer : outgoing) {
+                transfer.future.completeExceptionally(closedException);
+            }
+            for (Transfer transfer : unacked) {
+                transfer.future.completeExceptionally(closedException);
+            }
+            for (CompletableFuture<Void> future : batchFutures) {
+                future.completeExceptionally(closedException);
+            }
+            batch.reset();
+            batchFutures.clear();
+            outgoing.clear();
+            unacked.clear();
+        }
+        pool.release(this);
+        channel.close();
+    }
+}
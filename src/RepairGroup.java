@@ -0,0 +1,111 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/* A group of consecutive data segments protected by forward error
+ * correction. Each data segment is turned into a block holding its flags
+ * and payload, padded to the longest block of the group. Repair segments
+ * carry the code id, the repair index and the erasure coded block, with
+ * the group's first sequence number and size in the sequence number and
+ * count fields.
+ */
+class RepairGroup {
+    private static final int BLOCK_HEADER_LENGTH = 3; // flags, payload length
+    static final int REPAIR_OVERHEAD = BLOCK_HEADER_LENGTH + 2; // repair payload length over the data payload
+
+    final int start;
+    final int size;
+    final ErasureCode code;
+    private final byte[][] repairs;
+
+    RepairGroup(int start, int size, ErasureCode code) {
+        this.start = start;
+        this.size = size;
+        this.code = code;
+        this.repairs = new byte[maxRepairCount(size, code)][];
+    }
+
+    /* Repair segments a group of this size can use; more than one per data
+     * segment never helps, and the receiver drops any beyond this count.
+     */
+    static int maxRepairCount(int size, ErasureCode code) {
+        return Math.min(size, code.maxRepairCount(size));
+    }
+
+    // Computes the repair payloads for a group of data segments
+    static byte[][] encode(List<Segment> segments, ErasureCode code, int repairCount) {
+        int length = 0;
+        for (Segment segment : segments) {
+            length = Math.max(length, BLOCK_HEADER_LENGTH + segment.getData().length);
+        }
+        byte[][] blocks = new byte[segments.size()][];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = toBlock(segments.get(i), length);
+        }
+        byte[][] repairBlocks = code.encode(blocks, repairCount);
+        byte[][] payloads = new byte[repairBlocks.length][];
+        for (int j = 0; j < payloads.length; j++) {
+            payloads[j] = ByteBuffer.allocate(2 + length)
+                    .put((byte) code.id()).put((byte) j).put(repairBlocks[j]).array();
+        }
+        return payloads;
+    }
+
+    static int parseCodeId(Segment repair) {
+        return repair.getData().length > 0 ? repair.getData()[0] & 0xff : -1;
+    }
+
+    /* Returns false if the repair payload cannot belong to this group: all
+     * repair blocks of a group are as long as its longest data block.
+     */
+    boolean addRepair(Segment repair) {
+        byte[] payload = repair.getData();
+        if (payload.length <= 2 || parseCodeId(repair) != code.id()) return false;
+        int index = payload[1] & 0xff;
+        if (index >= repairs.length) return false;
+        for (byte[] stored : repairs) {
+            if (stored != null && stored.length != payload.length - 2) return false;
+        }
+        repairs[index] = Arrays.copyOfRange(payload, 2, payload.length);
+        return true;
+    }
+
+    /* Takes the group's data segments (null where missing) and returns the
+     * rebuilt segments in place of the missing ones, or null if not enough
+     * repair segments have arrived yet.
+     */
+    Segment[] recover(Segment[] segments, String sender) {
+        byte[] anyRepair = null;
+        for (byte[] repair : repairs) {
+            if (repair != null) anyRepair = repair;
+        }
+        if (anyRepair == null) return null;
+        byte[][] blocks = new byte[size][];
+        for (int i = 0; i < size; i++) {
+            if (segments[i] != null) blocks[i] = toBlock(segments[i], anyRepair.length);
+        }
+        if (!code.decode(blocks, repairs)) return null;
+        Segment[] recovered = new Segment[size];
+        for (int i = 0; i < size; i++) {
+            if (segments[i] == null) recovered[i] = fromBlock(blocks[i], (start + i) % ReliableSession.SEQUENCE_SPACE, sender);
+        }
+        return recovered;
+    }
+
+    private static byte[] toBlock(Segment segment, int length) {
+        byte[] data = segment.getData();
+        ByteBuffer block = ByteBuffer.allocate(length);
+        block.put((byte) segment.getFlags());
+        block.putShort((short) data.length);
+        block.put(data, 0, Math.min(data.length, block.remaining()));
+        return block.array();
+    }
+
+    private static Segment fromBlock(byte[] blockBytes, int seqNum, String sender) {
+        ByteBuffer block = ByteBuffer.wrap(blockBytes);
+        int flags = block.get() & 0xff;
+        int length = Math.min(block.getShort() & 0xffff, block.remaining());
+        byte[] data = Arrays.copyOfRange(blockBytes, block.position(), block.position() + length);
+        return new Segment(seqNum, data, flags, sender);
+    }
+}
@@ -1,37 +1,74 @@
+import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/* Wire format: a text header line "checksum seq count flags sender\n"
+ * followed by the raw payload bytes, which may be binary. The checksum is
+ * an MD5 over everything after it, so a corrupted sequence number, flag or
+ * sender is caught as well as a corrupted payload.
+ */
 public class Segment {
-    private String checksum;
+    static final int FLAG_ACK = 1;
+    static final int FLAG_STREAM = 2; // part of a bulk stream rather than a message
+    static final int FLAG_FIN = 4; // last segment of a message or stream
+    static final int FLAG_SYN = 8; // first segment sent to a peer, carries the initial sequence number
+    static final int FLAG_REPAIR = 16; // forward error correction repair segment, see RepairGroup
+    static final int FLAG_COMPRESSED = 32; // message payload is compressed as a whole
+    static final int FLAG_BINARY = 64; // message payload is binary rather than UTF-8 text
+    static final int FLAG_BATCH = 128; // message payload holds several framed messages, see ReliableSession
+    static final int CHECKSUM_LENGTH = 32; // hex digits of an MD5 digest
+
     private int sequenceNumber;
-    private String data;
+    private byte[] data;
     private int segmentCount;
-    private boolean isAck;
+    private int flags;
     private static final int firstLineItemsCount = 5;
     private String sender;
+    private boolean intact = true; // checksum matched, always true for segments built locally
+    private static final ThreadLocal<MessageDigest> messageDigest = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
 
-    public Segment(String checksum, int sequenceNumber, String data, boolean isAck, String sender) {
-        this.checksum = checksum;
+    public Segment(int sequenceNumber, byte[] data, int flags, String sender) {
         this.sequenceNumber = sequenceNumber;
         this.data = data;
-        this.isAck = isAck;
+        this.flags = flags;
         this.sender = sender;
     }
 
     public boolean isAck() {
-        return isAck;
+        return hasFlag(FLAG_ACK);
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
     }
 
     public void setSegmentCount(int segmentCount) {
         this.segmentCount = segmentCount;
     }
 
-    public String getChecksum() {
-        return checksum;
+    // Whether the received checksum matched the header fields and payload
+    public boolean isIntact() {
+        return intact;
     }
 
     public int getSequenceNumber() {
         return sequenceNumber;
     }
 
-    public String getData() {
+    public byte[] getData() {
         return data;
     }
 
@@ -43,29 +80,61 @@ public class Segment {
         return sender;
     }
 
-    public String serialize() {
-        return checksum + " " + sequenceNumber + " " + segmentCount + " "
-                + (isAck ? "1" : "0") + " " + sender + "\n" + data;
+    // Size in bytes of the header line of a segment with these fields
+    static int headerLength(int sequenceNumber, int segmentCount, int flags, String sender) {
+        return header(sequenceNumber, segmentCount, flags, sender).length + CHECKSUM_LENGTH + 1;
     }
 
-    public static Segment deserialize(String packet) throws SegmentationFaultException {
+    // The header line without the checksum and the space after it
+    private static byte[] header(int sequenceNumber, int segmentCount, int flags, String sender) {
+        return (sequenceNumber + " " + segmentCount + " "
+                + flags + " " + sender + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String createChecksum(byte[] packet, int offset) {
+        MessageDigest digest = messageDigest.get();
+        digest.update(packet, offset, packet.length - offset);
+        return DatatypeConverter.printHexBinary(digest.digest());
+    }
+
+    public byte[] serialize() {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] header = header(sequenceNumber, segmentCount, flags, sender);
+        body.write(header, 0, header.length);
+        body.write(data, 0, data.length);
+        byte[] covered = body.toByteArray();
+        String checksum = createChecksum(covered, 0);
+        byte[] packet = Arrays.copyOf((checksum + " ").getBytes(StandardCharsets.UTF_8), CHECKSUM_LENGTH + 1 + covered.length);
+        System.arraycopy(covered, 0, packet, CHECKSUM_LENGTH + 1, covered.length);
+        return packet;
+    }
+
+    public static Segment deserialize(byte[] packet) throws SegmentationFaultException {
         try {
-            String[] lines = packet.split("\n");
-            if (lines.length != 2) {
+            int newline = 0;
+            while (newline < packet.length && packet[newline] != '\n') {
+                newline++;
+            }
+            if (newline == packet.length) {
                 throw new SegmentationFaultException("Could not parse packet");
             }
-            String[] firstLineItems = lines[0].split(" ");
+            String[] firstLineItems = new String(packet, 0, newline, StandardCharsets.UTF_8).split(" ");
             if (firstLineItems.length != firstLineItemsCount) {
                 throw new SegmentationFaultException("Could not parse packet");
             }
             String checksum = firstLineItems[0];
             int seqNum = Integer.parseInt(firstLineItems[1]);
             int seqCount = Integer.parseInt(firstLineItems[2]);
-            boolean isAck = firstLineItems[3].equals("1");
+            int flags = Integer.parseInt(firstLineItems[3]);
             String sender = firstLineItems[4];
-            String data = lines[1];
-            Segment segment = new Segment(checksum, seqNum, data, isAck, sender);
+            if (seqNum < 0 || seqNum >= ReliableSession.SEQUENCE_SPACE || seqCount < 0) {
+                throw new SegmentationFaultException("Sequence number out of range");
+            }
+            byte[] data = Arrays.copyOfRange(packet, newline + 1, packet.length);
+            Segment segment = new Segment(seqNum, data, flags, sender);
             segment.setSegmentCount(seqCount);
+            segment.intact = checksum.length() == CHECKSUM_LENGTH
+                    && checksum.equalsIgnoreCase(createChecksum(packet, CHECKSUM_LENGTH + 1));
             return segment;
         } catch (Exception ex) {
             throw new SegmentationFaultException("Could not parse packet", ex);
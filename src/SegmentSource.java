@@ -0,0 +1,12 @@
+import java.io.IOException;
+
+/* Produces the payloads of one transfer segment by segment, so the sender
+ * only has to read as far ahead as its window reaches.
+ */
+interface SegmentSource {
+    // Returns at most maxLength bytes for the next segment; an empty payload at the end of a stream
+    byte[] next(int maxLength) throws IOException;
+
+    // True once the payload returned by the last call to next() was the final one
+    boolean finished();
+}
@@ -0,0 +1,152 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Shared runtime for any number of ReliableSessions. Every session owns
+ * a non-blocking DatagramChannel from this pool, and all of them are
+ * multiplexed on a single selector thread. Retransmission timers run on
+ * one shared scheduler, listener callbacks on a fixed pool of callback
+ * threads, and reads from outgoing streams on a separate fixed pool, so
+ * the thread count does not grow with the number of sessions. A listener
+ * or stream that blocks holds one of those threads, and sessions beyond
+ * the pool size wait their turn.
+ */
+public class SessionPool implements Closeable {
+    private final Selector selector;
+    private final Thread ioThread;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService callbackExecutor;
+    private final ExecutorService streamExecutor;
+    private final Queue<ReliableSession> registrations = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(ReliableSession.MAX_MSG_SIZE);
+    private volatile boolean closed = false;
+
+    public SessionPool() throws IOException {
+        selector = Selector.open();
+        scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("session-timer"));
+        int threads = Runtime.getRuntime().availableProcessors();
+        callbackExecutor = Executors.newFixedThreadPool(threads, daemonThreads("session-callback"));
+        streamExecutor = Executors.newFixedThreadPool(threads, daemonThreads("session-stream"));
+        ioThread = new Thread(this::ioLoop, "session-io");
+        ioThread.start();
+    }
+
+    // Opens a new session talking to the chat server at host:port
+    public ReliableSession open(String host, int port) throws IOException {
+        if (closed) throw new IOException("Session pool is closed");
+        DatagramChannel channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(null);
+        ReliableSession session = new ReliableSession(this, channel, new InetSocketAddress(host, port));
+        registrations.add(session);
+        selector.wakeup();
+        return session;
+    }
+
+    ScheduledExecutorService scheduler() {
+        return scheduler;
+    }
+
+    ExecutorService callbackExecutor() {
+        return callbackExecutor;
+    }
+
+    ExecutorService streamExecutor() {
+        return streamExecutor;
+    }
+
+    void release(ReliableSession session) {
+        SelectionKey key = session.getChannel().keyFor(selector);
+        if (key != null) key.cancel();
+        selector.wakeup();
+    }
+
+    private void ioLoop() {
+        while (!closed) {
+            try {
+                selector.select();
+                ReliableSession session;
+                while ((session = registrations.poll()) != null) {
+                    try {
+                        session.getChannel().register(selector, SelectionKey.OP_READ, session);
+                    } catch (ClosedChannelException e) {
+                        // session was closed before it got registered
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        readAll((ReliableSession) key.attachment());
+                    }
+                }
+            } catch (IOException e) {
+//                e.printStackTrace();
+            }
+        }
+    }
+
+    // Drains every datagram queued on the session's channel
+    private void readAll(ReliableSession session) {
+        while (true) {
+            readBuffer.clear();
+            try {
+                if (session.getChannel().receive(readBuffer) == null) return;
+            } catch (IOException e) {
+                return;
+            }
+            readBuffer.flip();
+            byte[] packet = new byte[readBuffer.remaining()];
+            readBuffer.get(packet);
+            try {
+                session.onDatagram(packet);
+            } catch (RuntimeException e) {
+                // a malformed datagram must not take down the thread all sessions share
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        if (Thread.currentThread() != ioThread) {
+            try {
+                ioThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        scheduler.shutdownNow();
+        callbackExecutor.shutdown();
+        streamExecutor.shutdown();
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            ((ReliableSession) key.attachment()).close();
+        }
+        selector.close();
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -1,28 +1,51 @@
 import java.io.IOException;
 import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
-public class Timer extends Thread {
+/* Retransmits one segment every RETRANSMIT_INTERVAL until the session
+ * reports it as received or the timer is killed. Timers run on the
+ * shared scheduler of the SessionPool rather than on a thread each.
+ */
+public class Timer implements Runnable {
+    private static final long RETRANSMIT_INTERVAL = 2000; // milliseconds
+    private ReliableSession session;
     private Segment segment;
     private boolean killed;
+    private ScheduledFuture<?> task;
 
-    public Timer(Segment segment) {
+    public Timer(ReliableSession session, Segment segment) {
+        this.session = session;
         this.segment = segment;
         this.killed = false;
     }
 
-    void kill() {
+    synchronized void start(ScheduledExecutorService scheduler) {
+        if (!killed) {
+            task = scheduler.scheduleWithFixedDelay(this, 0, RETRANSMIT_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void kill() {
         this.killed = true;
+        if (task != null) task.cancel(false);
+    }
+
+    private synchronized boolean isKilled() {
+        return killed;
     }
 
     @Override
     public void run() {
-        while (!killed && !UDPClient.received[segment.getSequenceNumber()]) {
-            try {
-                UDPClient.sendUnreliable(segment.serialize());
-                Thread.sleep(2000);
-            } catch (IOException | InterruptedException e) {
-                break;
-            }
+        if (isKilled() || session.isReceived(segment)) {
+            kill();
+            return;
+        }
+        try {
+            session.transmit(segment);
+        } catch (IOException e) {
+            kill();
         }
     }
 
@@ -0,0 +1,155 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/* Records the datagrams received by the ChannelEmulator, together with
+ * what the emulator did with them, to a pcap file that TrafficReplay can
+ * play back. The recording thread only encodes a record and puts it in a
+ * single-producer single-consumer ring; a writer thread appends the
+ * records to the file. If the writer falls behind, records are dropped
+ * and counted rather than slowing the emulator down.
+ *
+ * Records use link type LINKTYPE_USER0 with this payload: the action (see
+ * below), the source and destination addresses (IP length, IP bytes,
+ * port), the delay in milliseconds (-1 if dropped), the number of bytes
+ * corrupted and their offsets in the relayed datagram (a short, then an
+ * int each), and the datagram as it was received.
+ */
+public class TrafficCapture implements Closeable {
+    static final int PCAP_MAGIC = 0xa1b2c3d4; // microsecond timestamps
+    static final int LINKTYPE_USER0 = 147;
+    static final int SNAPLEN = 65535;
+    private static final int RING_SIZE = 1 << 14; // records, a power of two
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+    private static final long IDLE_PARK_NANOS = 1000000;
+    private static Logger log = Logger.getLogger(TrafficCapture.class.getName());
+
+    // Actions
+    static final int ECHOED = 0;
+    static final int CONTROL = 1; // answered as a control command
+    static final int RELAYED = 2; // relayed to a peer, after the recorded delay
+    static final int DROPPED = 3; // lost, or no room in the queues
+
+    private final FileChannel file;
+    private final byte[][] ring = new byte[RING_SIZE][];
+    private volatile long head = 0; // next record to write, advanced by the writer thread only
+    private volatile long tail = 0; // next free slot, advanced by the recording thread only
+    private final AtomicLong dropped = new AtomicLong();
+    private final long startMicros = System.currentTimeMillis() * 1000;
+    private final long startNanos = System.nanoTime();
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    // Appends to path, writing the pcap header first if the file is new or empty
+    public TrafficCapture(Path path) throws IOException {
+        file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (file.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(24);
+            header.putInt(PCAP_MAGIC).putShort((short) 2).putShort((short) 4).putInt(0).putInt(0)
+                    .putInt(SNAPLEN).putInt(LINKTYPE_USER0);
+            header.flip();
+            while (header.hasRemaining()) file.write(header);
+        }
+        writer = new Thread(this::writeLoop, "capture-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Wall clock time in microseconds, with nanoTime resolution
+    public long now() {
+        return startMicros + (System.nanoTime() - startNanos) / 1000;
+    }
+
+    /* Queues one record; corrupted may be null if nothing was corrupted.
+     * Must only be called from one thread at a time. Returns false if the
+     * record was dropped because the ring is full.
+     */
+    public boolean record(long time, int action, InetSocketAddress src, InetSocketAddress dst,
+                          long delay, List<Integer> corrupted, byte[] data) {
+        if (tail - head == RING_SIZE) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        byte[] srcIP = src.getAddress().getAddress();
+        byte[] dstIP = dst != null ? dst.getAddress().getAddress() : new byte[0];
+        int corruptions = corrupted != null ? Math.min(corrupted.size(), Short.MAX_VALUE) : 0;
+        int length = Math.max(0, Math.min(data.length, SNAPLEN - 32 - srcIP.length - dstIP.length - 4 * corruptions));
+        ByteBuffer buffer = ByteBuffer.allocate(16 + 1 + 3 + srcIP.length + 3 + dstIP.length + 4 + 2
+                + 4 * corruptions + length);
+        buffer.putInt((int) (time / 1000000)).putInt((int) (time % 1000000));
+        buffer.putInt(buffer.capacity() - 16).putInt(buffer.capacity() - 16 - length + data.length);
+        buffer.put((byte) action);
+        buffer.put((byte) srcIP.length).put(srcIP).putShort((short) src.getPort());
+        buffer.put((byte) dstIP.length).put(dstIP).putShort((short) (dst != null ? dst.getPort() : 0));
+        buffer.putInt((int) Math.max(-1, Math.min(delay, Integer.MAX_VALUE)));
+        buffer.putShort((short) corruptions);
+        for (int i = 0; i < corruptions; i++) buffer.putInt(corrupted.get(i));
+        buffer.put(data, 0, length);
+        ring[(int) (tail & (RING_SIZE - 1))] = buffer.array();
+        tail++; // volatile write publishes the slot to the writer
+        return true;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /* Drains the ring into the file, writing whatever was drained before
+     * parking, so a capture is complete up to the last idle moment even if
+     * the process is killed.
+     */
+    private void writeLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        try {
+            while (true) {
+                boolean wasClosed = closed;
+                while (head < tail) {
+                    int slot = (int) (head & (RING_SIZE - 1));
+                    byte[] record = ring[slot];
+                    ring[slot] = null;
+                    head++;
+                    if (buffer.remaining() < record.length) flush(buffer);
+                    if (record.length > buffer.capacity()) write(ByteBuffer.wrap(record));
+                    else buffer.put(record);
+                }
+                flush(buffer);
+                if (wasClosed) return;
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        } catch (IOException e) {
+            closed = true;
+            log.warning("Capture stopped, unable to write: " + e);
+        }
+    }
+
+    private void flush(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        write(buffer);
+        buffer.clear();
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) file.write(buffer);
+    }
+
+    // Writes out the records queued so far and closes the file
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        file.close();
+    }
+}
@@ -0,0 +1,165 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/* Plays a capture written by the ChannelEmulator's -CAPTURE option back
+ * into an emulator, with the original timing or sped up by -RATE. Every
+ * source address of the capture gets a socket of its own, so the emulator
+ * sees as many clients as there were, and the NAME, CONN and CHNL commands
+ * in the capture set them up again. Peers given as IP:port instead of by
+ * name will point at the original addresses, not the replaying sockets.
+ *
+ * Usage: TrafficReplay capture_file [-H host] [-P port] [-RATE factor]
+ * A rate of 2 replays twice as fast; a rate of 0 sends as fast as possible.
+ */
+public class TrafficReplay {
+    private static String SERVER = "127.0.1.1";
+    private static int PORT = 4353;
+    private static double RATE = 1.0;
+    private static final long LINGER = 2000; // milliseconds to collect responses after the last datagram
+
+    private final Map<InetSocketAddress, DatagramChannel> sources = new HashMap<>();
+    private final Selector selector;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(TrafficCapture.SNAPLEN);
+    private final int[] actions = new int[4]; // number of records per original action
+    private long sent = 0, received = 0, maxLag = 0, corrupted = 0;
+
+    TrafficReplay() throws IOException {
+        selector = Selector.open();
+    }
+
+    private void replay(DataInputStream in, InetSocketAddress server) throws IOException {
+        boolean swapped;
+        int magic = in.readInt();
+        if (magic == TrafficCapture.PCAP_MAGIC) swapped = false;
+        else if (magic == Integer.reverseBytes(TrafficCapture.PCAP_MAGIC)) swapped = true;
+        else throw new IOException("Not a pcap file with microsecond timestamps");
+        in.skipBytes(16);
+        int linktype = readInt(in, swapped);
+        if (linktype != TrafficCapture.LINKTYPE_USER0) throw new IOException("Unexpected link type " + linktype);
+
+        long first = -1, start = System.nanoTime();
+        while (true) {
+            long time;
+            byte[] record;
+            try {
+                time = (readInt(in, swapped) & 0xffffffffL) * 1000000 + readInt(in, swapped);
+                record = new byte[readInt(in, swapped)];
+                in.skipBytes(4); // original length
+                in.readFully(record);
+            } catch (EOFException e) {
+                break;
+            }
+            if (first < 0) first = time;
+            if (RATE > 0) {
+                long due = start + (long) ((time - first) * 1000 / RATE);
+                waitUntil(due);
+                maxLag = Math.max(maxLag, System.nanoTime() - due);
+            }
+            send(ByteBuffer.wrap(record), server);
+        }
+        waitUntil(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LINGER));
+        long elapsed = System.nanoTime() - start;
+        System.out.println("Replayed " + sent + " datagrams from " + sources.size() + " sources in " +
+                elapsed / 1000000 + " ms (" + (long) (sent * 1e9 / Math.max(elapsed, 1)) + " datagrams/s), " +
+                received + " datagrams received back" + (RATE > 0 ? ", max lag " + maxLag / 1000000 + " ms" : ""));
+        System.out.println("Originally echoed " + actions[TrafficCapture.ECHOED] + ", answered " +
+                actions[TrafficCapture.CONTROL] + ", relayed " + actions[TrafficCapture.RELAYED] +
+                ", dropped " + actions[TrafficCapture.DROPPED] + ", corrupted " + corrupted);
+        for (DatagramChannel channel : sources.values()) channel.close();
+        selector.close();
+    }
+
+    // Sends the datagram of a record from the socket standing in for its source
+    private void send(ByteBuffer record, InetSocketAddress server) throws IOException {
+        int action = record.get();
+        if (action >= 0 && action < actions.length) actions[action]++;
+        byte[] ip = new byte[record.get()];
+        record.get(ip);
+        InetSocketAddress src = new InetSocketAddress(InetAddress.getByAddress(ip), record.getShort() & 0xffff);
+        int dstLength = record.get();
+        record.position(record.position() + dstLength + 2 + 4); // destination IP and port, delay
+        int corruptions = record.getShort();
+        if (corruptions > 0) corrupted++;
+        record.position(record.position() + 4 * corruptions); // offsets of the corrupted bytes
+        DatagramChannel channel = sources.get(src);
+        if (channel == null) {
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.bind(null);
+            channel.register(selector, SelectionKey.OP_READ);
+            sources.put(src, channel);
+        }
+        channel.send(record, server);
+        sent++;
+    }
+
+    // Counts responses while waiting for the time the next datagram is due
+    private void waitUntil(long deadline) throws IOException {
+        long wait;
+        while ((wait = deadline - System.nanoTime()) > 0) {
+            if (wait < 1000000) {
+                LockSupport.parkNanos(wait);
+            } else if (selector.select(wait / 1000000) > 0) {
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    DatagramChannel channel = (DatagramChannel) keys.next().channel();
+                    keys.remove();
+                    readBuffer.clear();
+                    while (channel.receive(readBuffer) != null) {
+                        received++;
+                        readBuffer.clear();
+                    }
+                }
+            }
+        }
+    }
+
+    private static int readInt(DataInputStream in, boolean swapped) throws IOException {
+        int value = in.readInt();
+        return swapped ? Integer.reverseBytes(value) : value;
+    }
+
+    // Command-line argument processing
+    private static void processArgs(String[] args) {
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            args[i] = args[i].toUpperCase();
+            try {
+                if (args[i].equals("-HOST") || args[i].equals("-H")) {
+                    SERVER = args[i + 1];
+                } else if (args[i].equals("-PORT") || args[i].equals("-P")) {
+                    PORT = Integer.valueOf(args[i + 1]);
+                } else if (args[i].equals("-RATE")) {
+                    RATE = Double.valueOf(args[i + 1]);
+                }
+            } catch (NumberFormatException nfe) {
+                System.err.println("Bad " + args[i] + " input, ignoring or using default value");
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: TrafficReplay capture_file [-H host] [-P port] [-RATE factor]");
+            return;
+        }
+        processArgs(args);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(args[0]))))) {
+            new TrafficReplay().replay(in, new InetSocketAddress(SERVER, PORT));
+        }
+    }
+}
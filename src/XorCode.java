@@ -0,0 +1,47 @@
+// Single parity block: the XOR of all data blocks, repairs one loss per group
+public class XorCode implements ErasureCode {
+    static final int ID = 1;
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public int maxRepairCount(int groupSize) {
+        return 1;
+    }
+
+    @Override
+    public byte[][] encode(byte[][] data, int repairCount) {
+        byte[] parity = new byte[data[0].length];
+        for (byte[] block : data) {
+            xor(parity, block);
+        }
+        return new byte[][]{parity};
+    }
+
+    @Override
+    public boolean decode(byte[][] data, byte[][] repairs) {
+        int missing = -1;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != null) continue;
+            if (missing >= 0) return false;
+            missing = i;
+        }
+        if (missing < 0) return true;
+        if (repairs.length == 0 || repairs[0] == null) return false;
+        byte[] block = repairs[0].clone();
+        for (byte[] other : data) {
+            if (other != null) xor(block, other);
+        }
+        data[missing] = block;
+        return true;
+    }
+
+    private static void xor(byte[] into, byte[] block) {
+        for (int i = 0; i < into.length; i++) {
+            into[i] ^= block[i];
+        }
+    }
+}